@@ -23,7 +23,6 @@ import zju.cst.aces.parser.ProjectParser;
 import zju.cst.aces.runner.ClassRunner;
 import zju.cst.aces.utils.TestCompiler;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -55,11 +54,9 @@ public class ClassTestMojo
         }
 
         ProjectParser parser = new ProjectParser(srcMainJavaPath.toString(), parseOutput);
-        if (!(new File(parseOutput).exists())) {
-            log.info("\n==========================\n[ChatTester] Parsing class info ...");
-            parser.parse();
-            log.info("\n==========================\n[ChatTester] Parse finished");
-        }
+        log.info("\n==========================\n[ChatTester] Parsing class info ...");
+        parser.parse();
+        log.info("\n==========================\n[ChatTester] Parse finished: " + parser.getSummary());
 
         log.info("\n==========================\n[ChatTester] Generating tests for class < " + className + " > ...");
         TestCompiler.backupTestFolder();
@@ -73,5 +70,6 @@ public class ClassTestMojo
 //        TestCompiler.restoreTestFolder();
 
         log.info("\n==========================\n[ChatTester] Generation finished");
+        reportStatistics();
     }
 }
@@ -26,7 +26,6 @@ import zju.cst.aces.utils.ClassInfo;
 import zju.cst.aces.utils.MethodInfo;
 import zju.cst.aces.utils.TestCompiler;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -62,11 +61,9 @@ public class MethodTestMojo
         }
 
         ProjectParser parser = new ProjectParser(srcMainJavaPath.toString(), parseOutput);
-        if (! (new File(parseOutput).exists())) {
-            log.info("\n==========================\n[ChatTester] Parsing class info ...");
-            parser.parse();
-            log.info("\n==========================\n[ChatTester] Parse finished");
-        }
+        log.info("\n==========================\n[ChatTester] Parsing class info ...");
+        parser.parse();
+        log.info("\n==========================\n[ChatTester] Parse finished: " + parser.getSummary());
 
         log.info("\n==========================\n[ChatTester] Generating tests for class: < " + className
                 + "> method: < " + methodName + " > ...");
@@ -94,5 +91,6 @@ public class MethodTestMojo
 //        TestCompiler.restoreTestFolder();
 
         log.info("\n==========================\n[ChatTester] Generation finished");
+        reportStatistics();
     }
 }
@@ -28,9 +28,24 @@ import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 import zju.cst.aces.parser.ProjectParser;
+import zju.cst.aces.parser.TypeSolvers;
 import zju.cst.aces.runner.ClassRunner;
+import zju.cst.aces.utils.BatchScheduler;
+import zju.cst.aces.utils.BudgetGovernor;
+import zju.cst.aces.utils.CircuitBreaker;
 import zju.cst.aces.utils.Config;
+import zju.cst.aces.utils.HttpClientPool;
+import zju.cst.aces.utils.KeyPool;
+import zju.cst.aces.utils.LlmBackend;
+import zju.cst.aces.utils.ModelCascade;
+import zju.cst.aces.utils.PromptPacker;
+import zju.cst.aces.utils.RateLimiter;
+import zju.cst.aces.utils.RequestCoalescer;
+import zju.cst.aces.utils.ResponseCache;
+import zju.cst.aces.utils.StreamingCodeExtractor;
 import zju.cst.aces.utils.TestCompiler;
+import zju.cst.aces.utils.TokenCounter;
+import zju.cst.aces.utils.UsageStats;
 
 import java.io.File;
 import java.io.IOException;
@@ -87,6 +102,80 @@ public class ProjectTestMojo
     public int presencePenalty;
     @Parameter(name = "proxy",defaultValue = "null:-1")
     public String proxy;
+    @Parameter(property = "maxIdleConnections", defaultValue = "0")
+    public int maxIdleConnections;
+    @Parameter(property = "keepAliveSeconds", defaultValue = "300")
+    public int keepAliveSeconds;
+    @Parameter(property = "stream", defaultValue = "false")
+    public boolean stream;
+    @Parameter(property = "requestsPerMinute", defaultValue = "0")
+    public int requestsPerMinute;
+    @Parameter(property = "tokensPerMinute", defaultValue = "0")
+    public int tokensPerMinute;
+    @Parameter(alias = "cache", property = "cache", defaultValue = "false")
+    public boolean enableCache;
+    @Parameter(property = "cacheSize", defaultValue = "100")
+    public int cacheSize;
+    @Parameter(property = "coalesceRequests", defaultValue = "false")
+    public boolean coalesceRequests;
+    @Parameter(property = "batchMode", defaultValue = "false")
+    public boolean batchMode;
+    @Parameter(property = "batchWindow", defaultValue = "30")
+    public int batchWindow;
+    @Parameter(property = "batchMaxWait", defaultValue = "600")
+    public int batchMaxWait;
+    @Parameter(property = "batchPollInterval", defaultValue = "60")
+    public int batchPollInterval;
+    @Parameter(property = "batchUrl", defaultValue = "https://api.openai.com/v1")
+    public String batchUrl;
+    @Parameter(property = "maxRetries", defaultValue = "5")
+    public int maxRetries;
+    @Parameter(property = "retryBaseDelay", defaultValue = "1000")
+    public int retryBaseDelay;
+    @Parameter(property = "circuitBreakerThreshold", defaultValue = "5")
+    public int circuitBreakerThreshold;
+    @Parameter(property = "circuitBreakerCooldown", defaultValue = "30")
+    public int circuitBreakerCooldown;
+    @Parameter(property = "multipleChoices", defaultValue = "true")
+    public boolean multipleChoices;
+    @Parameter(property = "backend", defaultValue = "openai")
+    public String backend;
+    @Parameter(property = "baseUrl")
+    public String baseUrl;
+    @Parameter(property = "backendConcurrency", defaultValue = "0")
+    public int backendConcurrency;
+    @Parameter(property = "requestTimeout", defaultValue = "300")
+    public int requestTimeout;
+    @Parameter(property = "tokenBudget", defaultValue = "0")
+    public long tokenBudget;
+    @Parameter(property = "costBudget", defaultValue = "0")
+    public double costBudget;
+    @Parameter(property = "promptPrice", defaultValue = "0.0005")
+    public double promptPrice;
+    @Parameter(property = "completionPrice", defaultValue = "0.0015")
+    public double completionPrice;
+    @Parameter(property = "hedging", defaultValue = "false")
+    public boolean hedging;
+    @Parameter(property = "hedgePercentile", defaultValue = "95")
+    public int hedgePercentile;
+    @Parameter(property = "hedgeOtherKey", defaultValue = "true")
+    public boolean hedgeOtherKey;
+    @Parameter(property = "maxResponseTokens", defaultValue = "0")
+    public int maxResponseTokens;
+    @Parameter(property = "contextWindow", defaultValue = "4096")
+    public int contextWindow;
+    @Parameter(property = "maxContinuations", defaultValue = "2")
+    public int maxContinuations;
+    @Parameter(property = "cascadeModels")
+    public String[] cascadeModels;
+    @Parameter(property = "escalateAfterRounds", defaultValue = "2")
+    public int escalateAfterRounds;
+    @Parameter(property = "escalateOnErrors", defaultValue = "RUNTIME_ERROR")
+    public String[] escalateOnErrors;
+    @Parameter(property = "escalateDependencies", defaultValue = "5")
+    public int escalateDependencies;
+    @Parameter(property = "parseThreads", defaultValue = "0")
+    public int parseThreads;
 
     public static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
     @Component(hint = "default")
@@ -94,7 +183,6 @@ public class ProjectTestMojo
     public String parseOutput;
     public static Log log;
     public static int classThreads;
-    public static int methodThreads;
 
 
     /**
@@ -104,7 +192,12 @@ public class ProjectTestMojo
     public void execute() throws MojoExecutionException {
         init();
         log.info("\n==========================\n[ChatTester] Generating tests for project " + project.getBasedir().getName() + " ...");
-        log.warn("[ChatTester] It may consume a significant number of tokens!");
+        if (BudgetGovernor.isEnabled()) {
+            log.info("[ChatTester] Budget of the run: " + (Config.tokenBudget > 0 ? Config.tokenBudget + " tokens " : "")
+                    + (Config.costBudget > 0 ? "cost " + Config.costBudget : ""));
+        } else {
+            log.warn("[ChatTester] It may consume a significant number of tokens!");
+        }
 
         Path srcMainJavaPath = Paths.get(project.getBasedir().getAbsolutePath(), "src", "main", "java");
         if (!srcMainJavaPath.toFile().exists()) {
@@ -112,11 +205,9 @@ public class ProjectTestMojo
             return;
         }
         ProjectParser parser = new ProjectParser(srcMainJavaPath.toString(), parseOutput);
-        if (! (new File(parseOutput).exists())) {
-            log.info("\n==========================\n[ChatTester] Parsing class info ...");
-            parser.parse();
-            log.info("\n==========================\n[ChatTester] Parse finished");
-        }
+        log.info("\n==========================\n[ChatTester] Parsing class info ...");
+        parser.parse();
+        log.info("\n==========================\n[ChatTester] Parse finished: " + parser.getSummary());
 
         List<String> classPaths = new ArrayList<>();
         parser.scanSourceDirectory(srcMainJavaPath.toFile(), classPaths);
@@ -139,9 +230,14 @@ public class ProjectTestMojo
 //        TestCompiler.restoreTestFolder();
 
         log.info("\n==========================\n[ChatTester] Generation finished");
+        reportStatistics();
     }
 
     public void classJob(List<String> classPaths) {
+        if (Config.batchMode) {
+            batchJob(classPaths);
+            return;
+        }
         ExecutorService executor = Executors.newFixedThreadPool(classThreads);
         List<Future<String>> futures = new ArrayList<>();
         for (String classPath : classPaths) {
@@ -181,6 +277,28 @@ public class ProjectTestMojo
         executor.shutdown();
     }
 
+    /**
+     * Start all classes at once, so that the first rounds of the whole project are submitted in the same batch.
+     */
+    public void batchJob(List<String> classPaths) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (String classPath : classPaths) {
+            String className = classPath.substring(classPath.lastIndexOf(File.separator) + 1, classPath.lastIndexOf("."));
+            try {
+                className = getFullClassName(className);
+                log.info("\n==========================\n[ChatTester] Generating tests for class < " + className + " > ...");
+                futures.add(new ClassRunner(className, parseOutput, testOutput).methodJobAsync());
+            } catch (IOException e) {
+                log.error("[ChatTester] Generate tests for class " + className + " failed: " + e);
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            log.error("[ChatTester] " + e);
+        }
+    }
+
     public void init() {
         Config.setSession(session);
         Config.setProject(project);
@@ -199,19 +317,96 @@ public class ProjectTestMojo
         Config.setFrequencyPenalty(frequencyPenalty);
         Config.setPresencePenalty(presencePenalty);
         Config.setProxy(proxy);
+        Config.setMaxIdleConnections(maxIdleConnections);
+        Config.setKeepAliveSeconds(keepAliveSeconds);
+        Config.setStream(stream);
+        Config.setRequestsPerMinute(requestsPerMinute);
+        Config.setTokensPerMinute(tokensPerMinute);
+        Config.setEnableCache(enableCache);
+        Config.setCacheSize(cacheSize);
+        Config.setCoalesceRequests(coalesceRequests);
+        Config.setBatchMode(batchMode);
+        Config.setBatchWindow(batchWindow);
+        Config.setBatchMaxWait(batchMaxWait);
+        Config.setBatchPollInterval(batchPollInterval);
+        Config.setBatchUrl(batchUrl);
+        Config.setMaxRetries(maxRetries);
+        Config.setRetryBaseDelay(retryBaseDelay);
+        Config.setCircuitBreakerThreshold(circuitBreakerThreshold);
+        Config.setCircuitBreakerCooldown(circuitBreakerCooldown);
+        Config.setMultipleChoices(multipleChoices);
+        Config.setBackend(backend);
+        Config.setBaseUrl(baseUrl);
+        Config.setBackendConcurrency(backendConcurrency);
+        Config.setRequestTimeout(requestTimeout);
+        Config.setTokenBudget(tokenBudget);
+        Config.setCostBudget(costBudget);
+        Config.setPromptPrice(promptPrice);
+        Config.setCompletionPrice(completionPrice);
+        Config.setHedging(hedging);
+        Config.setHedgePercentile(hedgePercentile);
+        Config.setHedgeOtherKey(hedgeOtherKey);
+        Config.setMaxResponseTokens(maxResponseTokens);
+        Config.setContextWindow(contextWindow);
+        Config.setMaxContinuations(maxContinuations);
+        Config.setCascadeModels(cascadeModels);
+        Config.setEscalateAfterRounds(escalateAfterRounds);
+        Config.setEscalateOnErrors(escalateOnErrors);
+        Config.setEscalateDependencies(escalateDependencies);
+        Config.setParseThreads(parseThreads);
         tmpOutput = String.valueOf(Paths.get(tmpOutput, project.getArtifactId()));
+        Config.setTmpOutput(tmpOutput);
         parseOutput = tmpOutput + File.separator + "class-info";
         parseOutput = parseOutput.replace("/", File.separator);
         Config.setClassMapPath(Paths.get(parseOutput, "class-map.json"));
         log = getLog();
         classThreads = (int) Math.ceil((double)  Config.maxThreads / 10);
-        methodThreads = (int) Math.ceil((double) Config.maxThreads / classThreads);
-        log.info("\n==========================\n[ChatTester] Multithreading enabled >>>> " + Config.enableMultithreading);
-        if (Config.stopWhenSuccess == false) {
-            methodThreads = (int) Math.ceil((double)  methodThreads / Config.testNumber);
+        if (Config.batchMode && !Config.enableMultithreading) {
+            // one request at a time would wait for a whole batch each
+            log.warn("[ChatTester] Batch mode requires multithreading, multithreading is enabled");
+            Config.setEnableMultithreading(true);
         }
+        log.info("\n==========================\n[ChatTester] Multithreading enabled >>>> " + Config.enableMultithreading);
         if (Config.enableMultithreading == true) {
-            log.info("Class threads: " + classThreads + ", Method threads: " + methodThreads);
+            log.info("Class threads: " + classThreads + ", Max requests in flight: " + Config.maxThreads
+                    + " (adapted to the API quota at runtime)");
+        }
+    }
+
+    /**
+     * Print the run-level statistics of the LLM client
+     */
+    public void reportStatistics() {
+        log.info("[ChatTester] " + HttpClientPool.getStats());
+        log.info("[ChatTester] " + RateLimiter.getStats());
+        for (LlmBackend backend : LlmBackend.getBackends()) {
+            log.info("[ChatTester] " + backend.getStats());
+            log.info("[ChatTester] " + backend.getLimiter().getStats());
+        }
+        if (Config.batchMode) {
+            log.info("[ChatTester] " + BatchScheduler.getInstance().getStats());
+        }
+        if (Config.coalesceRequests) {
+            log.info("[ChatTester] " + RequestCoalescer.getStats());
+        }
+        if (ResponseCache.getInstance() != null) {
+            log.info("[ChatTester] " + ResponseCache.getInstance().getStats());
+        }
+        if (Config.stream) {
+            log.info("[ChatTester] " + StreamingCodeExtractor.getStats());
+        }
+        log.info("[ChatTester] " + CircuitBreaker.getStats());
+        log.info("[ChatTester] " + KeyPool.getStats());
+        log.info("[ChatTester] " + UsageStats.getStats());
+        log.info("[ChatTester] " + ModelCascade.getStats());
+        log.info("[ChatTester] " + PromptPacker.getStats());
+        log.info("[ChatTester] " + TypeSolvers.getStats());
+        log.debug("[ChatTester] " + TokenCounter.getStats());
+        if (BudgetGovernor.isEnabled()) {
+            log.info("[ChatTester] " + BudgetGovernor.getStats());
+            for (String method : BudgetGovernor.getExhaustedMethods()) {
+                log.warn("[ChatTester] Not fully tested, budget exhausted: " + method);
+            }
         }
     }
 
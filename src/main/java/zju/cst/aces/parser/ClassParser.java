@@ -4,24 +4,19 @@ import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParseResult;
 import com.github.javaparser.Position;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.DataKey;
 import com.github.javaparser.ast.ImportDeclaration;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.*;
 import com.github.javaparser.ast.expr.AssignExpr;
 import com.github.javaparser.ast.expr.FieldAccessExpr;
 import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
 import com.github.javaparser.ast.stmt.ReturnStmt;
 import com.github.javaparser.resolution.declarations.ResolvedMethodDeclaration;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import org.apache.maven.project.DefaultProjectBuildingRequest;
-import org.apache.maven.project.ProjectBuildingRequest;
-import org.apache.maven.shared.dependency.graph.DependencyNode;
 import org.jetbrains.annotations.NotNull;
 import zju.cst.aces.utils.ClassInfo;
 import zju.cst.aces.utils.Config;
@@ -39,56 +34,28 @@ import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Extract the info of the classes in a source file. The state of the parser is confined to the instance,
+ * which is used by one thread at a time, so the files can be parsed in parallel by a parser per worker.
+ */
 public class ClassParser {
-    public static final JavaParser parser = new JavaParser();
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
     private static final String separator = "_";
-    private static Path outputPath = null;
-    private static ClassInfo classInfo;
+    private static final DataKey<LineIndex> LINE_INDEX = new DataKey<LineIndex>() {
+    };
+    private final JavaParser parser = new JavaParser();
+    private ClassInfo classInfo;
 
-    public ClassParser(String path) {
-        setOutputPath(path);
-        JavaSymbolSolver symbolSolver = getSymbolSolver();
+    public ClassParser() {
+        JavaSymbolSolver symbolSolver = TypeSolvers.newSymbolSolver();
         parser.getParserConfiguration().setSymbolResolver(symbolSolver);
     }
 
-    public ClassParser(Path path) {
-        setOutputPath(path.toString());
-        JavaSymbolSolver symbolSolver = getSymbolSolver();
-        parser.getParserConfiguration().setSymbolResolver(symbolSolver);
-    }
-
-    private JavaSymbolSolver getSymbolSolver() {
-        CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver();
-        combinedTypeSolver.add(new ReflectionTypeSolver());
-        try {
-            ProjectBuildingRequest buildingRequest = new DefaultProjectBuildingRequest(Config.session.getProjectBuildingRequest() );
-            buildingRequest.setProject(Config.project);
-            DependencyNode root = Config.dependencyGraphBuilder.buildDependencyGraph(buildingRequest, null);
-            Set<DependencyNode> depSet = new HashSet<>();
-            walkDep(root, depSet);
-            for (DependencyNode dep : depSet) {
-                if (dep.getArtifact().getFile() != null) {
-                    combinedTypeSolver.add(new JarTypeSolver(dep.getArtifact().getFile()));
-                }
-            }
-        } catch (Exception e) {
-            System.out.println(e);
-        }
-        for (String src : Config.project.getCompileSourceRoots()) {
-            if (new File(src).exists()) {
-                combinedTypeSolver.add(new JavaParserTypeSolver(src));
-            }
-        }
-        JavaSymbolSolver symbolSolver = new JavaSymbolSolver(combinedTypeSolver);
-        return symbolSolver;
-    }
-
-    private static void walkDep(DependencyNode node, Set<DependencyNode> depSet) {
-        depSet.add(node);
-        for (DependencyNode dep : node.getChildren()) {
-            walkDep(dep, depSet);
-        }
+    /**
+     * The parser with the symbol solver of the project.
+     */
+    public JavaParser getParser() {
+        return parser;
     }
 
     private static boolean isJavaSourceDir(Path path) {
@@ -96,23 +63,19 @@ public class ClassParser {
                 "src" + File.separator + "main" + File.separator + "java"));
     }
 
-    private static void setOutputPath(String path) {
-        outputPath = Paths.get(path);
-    }
-
-    private static void extractMethods(CompilationUnit cu, ClassOrInterfaceDeclaration classDeclaration) throws IOException {
+    private void extractMethods(CompilationUnit cu, ClassOrInterfaceDeclaration classDeclaration, Path outputPath) throws IOException {
         List<MethodDeclaration> methods = classDeclaration.getMethods();
         for (MethodDeclaration m : methods) {
             MethodInfo info = getInfoByMethod(cu, classDeclaration, m);
-            exportMethodInfo(GSON.toJson(info), classDeclaration, m);
+            exportMethodInfo(GSON.toJson(info), classDeclaration, m, outputPath);
         }
     }
 
-    private static void extractConstructors(CompilationUnit cu, ClassOrInterfaceDeclaration classDeclaration) throws IOException {
+    private void extractConstructors(CompilationUnit cu, ClassOrInterfaceDeclaration classDeclaration, Path outputPath) throws IOException {
         List<ConstructorDeclaration> constructors = classDeclaration.getConstructors();
         for (ConstructorDeclaration c : constructors) {
             MethodInfo info = getInfoByMethod(cu, classDeclaration, c);
-            exportConstructorInfo(GSON.toJson(info), classDeclaration, c);
+            exportConstructorInfo(GSON.toJson(info), classDeclaration, c, outputPath);
         }
     }
 
@@ -132,14 +95,14 @@ public class ClassParser {
                 hasConstructors(classNode),
                 getBriefConstructors(cu, classNode),
                 getGetterSetter(cu, classNode),
-                getConstructorDeps(cu, classNode));
+                getConstructorDeps(cu, classNode)).countTokens();
     }
 
     /**
      * Generate extracted information of focal method(constructor).
      */
     private static MethodInfo getInfoByMethod(CompilationUnit cu, ClassOrInterfaceDeclaration classNode, CallableDeclaration node) {
-        return new MethodInfo(
+        MethodInfo info = new MethodInfo(
                 classNode.getNameAsString(),
                 node.getNameAsString(),
                 getBriefMethod(cu, node),
@@ -151,6 +114,8 @@ public class ClassParser {
                 isPublic(node),
                 getParameters(node),
                 getDependentMethods(cu, node));
+        info.usedFields = getUsedFields(classNode, node);
+        return info.countTokens();
     }
 
     private static Map<String, Set<String>> getConstructorDeps(CompilationUnit cu, ClassOrInterfaceDeclaration classNode) {
@@ -280,16 +245,16 @@ public class ClassParser {
         if (node instanceof MethodDeclaration) {
             MethodDeclaration methodNode = (MethodDeclaration) node;
             if (methodNode.getBody().isPresent()) {
-                sig = getSourceCodeByPosition(getTokenString(cu),
+                sig = getSourceCodeByPosition(getLineIndex(cu),
                         methodNode.getBegin().orElseThrow(), methodNode.getBody().get().getBegin().orElseThrow());
                 sig = sig.substring(0, sig.lastIndexOf("{") - 1) + ";";
             } else {
-                sig = getSourceCodeByPosition(getTokenString(cu),
+                sig = getSourceCodeByPosition(getLineIndex(cu),
                         methodNode.getBegin().orElseThrow(), methodNode.getEnd().orElseThrow());
             }
         } else if (node instanceof ConstructorDeclaration) {
             ConstructorDeclaration constructorNode = (ConstructorDeclaration) node.removeComment();
-            sig = getSourceCodeByPosition(getTokenString(cu),
+            sig = getSourceCodeByPosition(getLineIndex(cu),
                     constructorNode.getBegin().orElseThrow(), constructorNode.getBody().getBegin().orElseThrow());
             sig = sig.substring(0, sig.lastIndexOf("{") - 1) + ";";
         }
@@ -300,7 +265,7 @@ public class ClassParser {
      * Get class signature
      */
     private static String getClassSignature(CompilationUnit cu, ClassOrInterfaceDeclaration node) {
-        return getSourceCodeByPosition(getTokenString(cu), node.getBegin().orElseThrow(), node.getName().getEnd().orElseThrow());
+        return getSourceCodeByPosition(getLineIndex(cu), node.getBegin().orElseThrow(), node.getName().getEnd().orElseThrow());
     }
 
     /**
@@ -360,6 +325,26 @@ public class ClassParser {
         return false;
     }
 
+    /**
+     * Get the indexes of the fields of the class which the method refers to by name
+     */
+    private static List<Integer> getUsedFields(ClassOrInterfaceDeclaration classNode, CallableDeclaration<?> node) {
+        Set<String> names = new HashSet<>();
+        node.findAll(NameExpr.class).forEach(n -> names.add(n.getNameAsString()));
+        node.findAll(FieldAccessExpr.class).forEach(f -> names.add(f.getNameAsString()));
+        List<Integer> usedFields = new ArrayList<>();
+        List<FieldDeclaration> fields = classNode.getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            for (VariableDeclarator variable : fields.get(i).getVariables()) {
+                if (names.contains(variable.getNameAsString())) {
+                    usedFields.add(i);
+                    break;
+                }
+            }
+        }
+        return usedFields;
+    }
+
     private static boolean isPublic(CallableDeclaration node) {
         return node.isPublic();
     }
@@ -402,23 +387,28 @@ public class ClassParser {
         return dependentMethods;
     }
 
-    private static String getSourceCodeByPosition(String code, Position begin, Position end) {
-        String[] lines = code.split("\\n");
+    /**
+     * Get the source code between the positions, the lines are joined by the line separator of the system.
+     */
+    private static String getSourceCodeByPosition(LineIndex index, Position begin, Position end) {
+        String code = index.code;
         StringBuilder sb = new StringBuilder();
 
         for (int i = begin.line - 1; i < end.line; i++) {
+            int lineStart = index.starts[i];
+            int lineEnd = index.ends[i];
             if (i == begin.line - 1 && i == end.line - 1) {
                 // The range is within a single line
-                sb.append(lines[i].substring(begin.column - 1, end.column));
+                sb.append(code, lineStart + begin.column - 1, lineStart + end.column);
             } else if (i == begin.line - 1) {
                 // The first line of the range
-                sb.append(lines[i].substring(begin.column - 1));
+                sb.append(code, lineStart + begin.column - 1, lineEnd);
             } else if (i == end.line - 1) {
                 // The last line of the range
-                sb.append(lines[i].substring(0, end.column));
+                sb.append(code, lineStart, lineStart + end.column);
             } else {
                 // A middle line in the range
-                sb.append(lines[i]);
+                sb.append(code, lineStart, lineEnd);
             }
 
             // Add line breaks except for the last line
@@ -430,6 +420,47 @@ public class ClassParser {
         return sb.toString();
     }
 
+    /**
+     * The line index of the compilation unit, built once and kept in the data of the compilation unit.
+     */
+    private static LineIndex getLineIndex(CompilationUnit cu) {
+        if (!cu.containsData(LINE_INDEX)) {
+            cu.setData(LINE_INDEX, new LineIndex(getTokenString(cu)));
+        }
+        return cu.getData(LINE_INDEX);
+    }
+
+    /**
+     * The source code of a compilation unit with the offsets of its lines, the lines are separated by "\n".
+     */
+    private static class LineIndex {
+        final String code;
+        // the offset of the first character of each line
+        final int[] starts;
+        // the offset of the "\n" ending each line, the length of the code for the last line
+        final int[] ends;
+
+        LineIndex(String code) {
+            this.code = code;
+            int lines = 1;
+            for (int i = 0; i < code.length(); i++) {
+                if (code.charAt(i) == '\n') {
+                    lines++;
+                }
+            }
+            starts = new int[lines];
+            ends = new int[lines];
+            int line = 0;
+            for (int i = 0; i < code.length(); i++) {
+                if (code.charAt(i) == '\n') {
+                    ends[line] = i;
+                    starts[++line] = i + 1;
+                }
+            }
+            ends[line] = code.length();
+        }
+    }
+
     private static String getTokenString(@NotNull Node node) {
         if (node.getTokenRange().isPresent()) {
             return node.getTokenRange().get().toString();
@@ -438,7 +469,7 @@ public class ClassParser {
         }
     }
 
-    private static void exportClassInfo(String json, ClassOrInterfaceDeclaration classNode) throws IOException {
+    private static void exportClassInfo(String json, ClassOrInterfaceDeclaration classNode, Path outputPath) throws IOException {
         Path classOutputDir = outputPath.resolve(classNode.getName().getIdentifier());
         if (!Files.exists(classOutputDir)) {
             Files.createDirectories(classOutputDir);
@@ -450,7 +481,7 @@ public class ClassParser {
         }
     }
 
-    private static void exportMethodInfo(String json, ClassOrInterfaceDeclaration classNode, MethodDeclaration node) throws IOException {
+    private void exportMethodInfo(String json, ClassOrInterfaceDeclaration classNode, MethodDeclaration node, Path outputPath) throws IOException {
         Path classOutputDir = outputPath.resolve(classNode.getName().getIdentifier());
         if (!Files.exists(classOutputDir)) {
             Files.createDirectories(classOutputDir);
@@ -462,7 +493,7 @@ public class ClassParser {
         }
     }
 
-    private static void exportConstructorInfo(String json, ClassOrInterfaceDeclaration classNode, ConstructorDeclaration node) throws IOException {
+    private void exportConstructorInfo(String json, ClassOrInterfaceDeclaration classNode, ConstructorDeclaration node, Path outputPath) throws IOException {
         Path classOutputDir = outputPath.resolve(classNode.getName().getIdentifier());
         if (!Files.exists(classOutputDir)) {
             Files.createDirectories(classOutputDir);
@@ -477,7 +508,7 @@ public class ClassParser {
     /**
      * Generate a filename for the focal method json file by method signature.
      */
-    private static Path getFilePathBySig(String sig) {
+    private Path getFilePathBySig(String sig) {
         Map<String, String> mSigs = classInfo.methodSignatures;
         return Paths.get(mSigs.get(sig) + ".json");
     }
@@ -500,7 +531,13 @@ public class ClassParser {
         }
     }
 
-    public void extractClass(String classPath) {
+    /**
+     * Extract the info of the classes in the source file into the output directory.
+     * @param classInfos receives the info of the classes extracted, each has its directory in the output directory,
+     *                   including those exported before a failure
+     * @return false if the file could not be parsed or the info of its classes not all exported
+     */
+    public boolean extractClass(String classPath, Path outputPath, List<ClassInfo> classInfos) {
         File file = new File(classPath);
         try {
             ParseResult<CompilationUnit> parseResult = parser.parse(file);
@@ -508,13 +545,16 @@ public class ClassParser {
             List<ClassOrInterfaceDeclaration> classes = cu.findAll(ClassOrInterfaceDeclaration.class);
             for (ClassOrInterfaceDeclaration classDeclaration : classes) {
                 classInfo = getInfoByClass(cu, classDeclaration);
-                exportClassInfo(GSON.toJson(classInfo), classDeclaration);
-                extractMethods(cu, classDeclaration);
-                extractConstructors(cu, classDeclaration);
+                classInfos.add(classInfo);
+                exportClassInfo(GSON.toJson(classInfo), classDeclaration, outputPath);
+                extractMethods(cu, classDeclaration, outputPath);
+                extractConstructors(cu, classDeclaration, outputPath);
             }
         } catch (Exception e) {
             System.out.println("In ClassParser.extractClass Exception: " + e);
             e.printStackTrace();
+            return false;
         }
+        return true;
     }
-}
+}
\ No newline at end of file
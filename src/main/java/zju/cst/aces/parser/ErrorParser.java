@@ -27,10 +27,10 @@ public class ErrorParser {
             if(line.contains("[ERROR]")){
                 isErrorSection=true;
                 errorMessageBuffer.append(line).append("\n");
-                //TODO: Unused ErrorType
+                // the [ERROR] lines of the compiler follow the COMPILATION ERROR line, which decides the type
                 if(hasErrorFlag(line,"COMPILATION ERROR")){
                     testMessage.setErrorType(TestMessage.ErrorType.COMPILE_ERROR);
-                }else{
+                }else if(testMessage.getErrorType()!=TestMessage.ErrorType.COMPILE_ERROR){
                     testMessage.setErrorType(TestMessage.ErrorType.RUNTIME_ERROR);
                 }
             }else if(isErrorSection && !line.startsWith("[INFO]") && !line.startsWith("[WARNING]")){
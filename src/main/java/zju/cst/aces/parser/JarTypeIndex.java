@@ -0,0 +1,207 @@
+package zju.cst.aces.parser;
+
+import com.github.javaparser.resolution.TypeSolver;
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.resolution.model.SymbolReference;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A persistent index of the types in the dependency jars, so that the jars are not opened and listed on every run.
+ * A jar is identified by its path, size and the checksum of its end, which holds the central directory
+ * with the CRC of every entry. The jars found in the index are opened only when one of their types is resolved.
+ * The index is a gzipped binary file: the version, then for each jar its path, size, checksum and type names.
+ */
+public class JarTypeIndex {
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_BYTES = 64 * 1024;
+    private static final AtomicLong fromIndex = new AtomicLong();
+    private static final AtomicLong indexed = new AtomicLong();
+    private static final AtomicLong opened = new AtomicLong();
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> used = new HashMap<>();
+    private boolean changed = false;
+
+    private static class Entry {
+        final long size;
+        final long checksum;
+        final Set<String> types;
+
+        Entry(long size, long checksum, Set<String> types) {
+            this.size = size;
+            this.checksum = checksum;
+            this.types = types;
+        }
+    }
+
+    private JarTypeIndex(Path file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * Load the index, an empty index if the file is missing or unreadable.
+     * @param file the file of the index, null for an index which is not persisted
+     */
+    public static JarTypeIndex load(Path file) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (file == null) {
+            return new JarTypeIndex(null, entries);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != VERSION) {
+                return new JarTypeIndex(file, entries);
+            }
+            int jars = in.readInt();
+            for (int i = 0; i < jars; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long checksum = in.readLong();
+                int count = in.readInt();
+                Set<String> types = new HashSet<>(count * 4 / 3 + 1);
+                for (int j = 0; j < count; j++) {
+                    types.add(in.readUTF());
+                }
+                entries.put(path, new Entry(size, checksum, types));
+            }
+        } catch (NoSuchFileException e) {
+            // the first run
+        } catch (IOException e) {
+            System.out.println("In JarTypeIndex.load: " + e);
+            entries.clear();
+        }
+        return new JarTypeIndex(file, entries);
+    }
+
+    /**
+     * The type solver of the jar, which opens the jar lazily if it is in the index, otherwise it is indexed now.
+     */
+    public TypeSolver getSolver(File jar) throws IOException {
+        String path = jar.getAbsolutePath();
+        long size = jar.length();
+        long checksum = checksum(jar, size);
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.checksum == checksum) {
+            used.put(path, entry);
+            fromIndex.incrementAndGet();
+            return new LazyJarTypeSolver(jar, entry.types);
+        }
+        JarTypeSolver solver = new JarTypeSolver(jar);
+        used.put(path, new Entry(size, checksum, new HashSet<>(solver.getKnownClasses())));
+        changed = true;
+        indexed.incrementAndGet();
+        return solver;
+    }
+
+    /**
+     * Save the index of the jars used in this run, if any jar was indexed or dropped.
+     */
+    public void save() {
+        if (file == null || (!changed && used.size() == entries.size())) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeInt(VERSION);
+                out.writeInt(used.size());
+                for (Map.Entry<String, Entry> e : used.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().size);
+                    out.writeLong(e.getValue().checksum);
+                    out.writeInt(e.getValue().types.size());
+                    for (String type : e.getValue().types) {
+                        out.writeUTF(type);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("In JarTypeIndex.save: " + e);
+        }
+    }
+
+    private static long checksum(File jar, long size) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            byte[] bytes = new byte[(int) Math.min(size, CHECKSUM_BYTES)];
+            in.seek(size - bytes.length);
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return crc.getValue();
+        }
+    }
+
+    public static String getStats() {
+        return String.format("jars from the index: %d, indexed: %d, opened lazily: %d", fromIndex.get(), indexed.get(), opened.get());
+    }
+
+    /**
+     * The solver of an indexed jar, the jar is opened when a type in it is resolved for the first time.
+     */
+    private static class LazyJarTypeSolver implements TypeSolver {
+        private final File jar;
+        private final Set<String> types;
+        private TypeSolver parent;
+        private volatile TypeSolver solver;
+
+        LazyJarTypeSolver(File jar, Set<String> types) {
+            this.jar = jar;
+            this.types = types;
+        }
+
+        @Override
+        public TypeSolver getParent() {
+            return parent;
+        }
+
+        @Override
+        public void setParent(TypeSolver parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+            if (!types.contains(name)) {
+                return SymbolReference.unsolved();
+            }
+            TypeSolver jarSolver = getJarSolver();
+            return jarSolver == null ? SymbolReference.unsolved() : jarSolver.tryToSolveType(name);
+        }
+
+        private TypeSolver getJarSolver() {
+            if (solver == null) {
+                synchronized (this) {
+                    if (solver == null) {
+                        try {
+                            JarTypeSolver jarSolver = new JarTypeSolver(jar);
+                            jarSolver.setParent(parent);
+                            solver = jarSolver;
+                            opened.incrementAndGet();
+                        } catch (IOException e) {
+                            System.out.println("In JarTypeIndex: " + e);
+                            types.clear();
+                        }
+                    }
+                }
+            }
+            return solver;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package zju.cst.aces.parser;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.codehaus.plexus.util.FileUtils;
+import zju.cst.aces.utils.ClassInfo;
 import zju.cst.aces.utils.Config;
 
 import java.io.File;
@@ -12,10 +14,14 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class ProjectParser {
 
@@ -23,7 +29,13 @@ public class ProjectParser {
     private String outputPath;
     public Map<String, List<String>> classMap = new HashMap<>();
     public Map<String, String> classPathMap = new HashMap<>();
+    private static final String MANIFEST = "parse-manifest.json";
+    private int parsedFiles = 0;
+    private int dependentFiles = 0;
+    private int unchangedFiles = 0;
+    private int removedFiles = 0;
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+    private static final Pattern DECLARATION = Pattern.compile("\\b(?:class|interface)\\s+([A-Za-z_$][\\w$]*)");
 
     public ProjectParser(String src, String output) {
         setSrcFolderPath(src);
@@ -45,7 +57,16 @@ public class ProjectParser {
     }
 
     /**
-     * Parse the project.
+     * Parse the files of the project added or changed since the last parse, and drop the info of the removed files.
+     * The parsed files are tracked by the {@link SourceManifest} in the parse output, everything is parsed on the first run.
+     * If the classes of a file or their method signatures changed, the files referring to these classes by name are parsed
+     * again too, since the dependencies they resolved may have changed. A file whose classes could not all be extracted
+     * is recorded without its hash, so it is parsed again by the next parse.
+     * The files are parsed in parallel by {@link Config#parseThreads} workers, each with its own {@link ClassParser}.
+     * The output directory of a class is named after the class, so the files of a package declaring classes of the same
+     * name (nested classes such as Builder) write to the same directory: these files are parsed one after another
+     * on the same worker, in the order of the scan, so the output is the same as parsing the files one after another.
+     * When such a directory is deleted to parse a file again, the other files writing to it are parsed again too.
      */
     public void parse() {
         List<String> classPaths = new ArrayList<>();
@@ -55,21 +76,280 @@ public class ProjectParser {
             throw new RuntimeException("No java file found in " + srcFolderPath);
         }
         for (String classPath : classPaths) {
-            try {
-                // 构造一个类名到全路径的映射
-                addClassMap(classPath);
-                // 拿到包名
-                String packagePath = classPath.substring(srcFolderPath.length() + 1);
-                //
-                Path output = Paths.get(outputPath, packagePath).getParent();
-                //
-                ClassParser classParser = new ClassParser(output);
-                classParser.extractClass(classPath);
-            } catch (Exception e) {
-                throw new RuntimeException("In ProjectParser.parse: " + e);
-            }
-        }
-        exportClassMap();
+            // 构造一个类名到全路径的映射
+            addClassMap(classPath);
+        }
+        SourceManifest manifest = SourceManifest.load(Paths.get(outputPath, MANIFEST));
+        boolean firstParse = manifest.isEmpty();
+        Map<String, SourceManifest.Entry> changed = new LinkedHashMap<>();
+        Map<String, String> previousApis = new HashMap<>();
+        // the classes which are added, removed, or whose method signatures changed
+        Set<String> changedApis = new HashSet<>();
+        try {
+            for (String classPath : classPaths) {
+                SourceManifest.Entry entry = manifest.check(classPath);
+                if (entry != null) {
+                    changed.put(classPath, entry);
+                    SourceManifest.Entry previous = manifest.get(classPath);
+                    if (previous != null) {
+                        previousApis.put(classPath, previous.api);
+                        changedApis.addAll(previous.classes);
+                    }
+                }
+            }
+            List<String> removed = manifest.getRemoved(classPaths);
+            Set<Path> removedDirs = new HashSet<>();
+            for (String classPath : removed) {
+                changedApis.addAll(manifest.getClasses(classPath));
+                removedDirs.addAll(getExtractedDirs(classPath, manifest));
+                deleteClassInfo(classPath, manifest.getClasses(classPath));
+                manifest.remove(classPath);
+            }
+            Map<String, SourceManifest.Entry> parsing = withSharingFiles(classPaths, changed, removedDirs, manifest);
+            for (String classPath : parsing.keySet()) {
+                deleteClassInfo(classPath, manifest.getClasses(classPath));
+            }
+            parseClasses(parsing, manifest);
+            for (Map.Entry<String, SourceManifest.Entry> entry : changed.entrySet()) {
+                if (entry.getValue().api == null) {
+                    // not extracted, the classes it had are taken as changed
+                    continue;
+                }
+                if (entry.getValue().api.equals(previousApis.get(entry.getKey()))) {
+                    changedApis.removeAll(entry.getValue().classes);
+                } else {
+                    changedApis.addAll(entry.getValue().classes);
+                }
+            }
+            Set<String> parsed = new HashSet<>(parsing.keySet());
+            Map<String, SourceManifest.Entry> dependents = firstParse ? Collections.emptyMap()
+                    : getDependents(classPaths, parsed, changedApis, manifest);
+            parsing = withSharingFiles(classPaths, dependents, Collections.emptySet(), manifest);
+            for (String classPath : parsing.keySet()) {
+                deleteClassInfo(classPath, manifest.getClasses(classPath));
+            }
+            parseClasses(parsing, manifest);
+            parsed.addAll(parsing.keySet());
+
+            parsedFiles = parsed.size();
+            dependentFiles = dependents.size();
+            removedFiles = removed.size();
+            unchangedFiles = classPaths.size() - parsedFiles;
+            boolean added = changed.size() > previousApis.size();
+            if (added || !removed.isEmpty() || !Files.exists(Config.classMapPath)) {
+                exportClassMap();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("In ProjectParser.parse: " + e);
+        }
+        manifest.save();
+    }
+
+    /**
+     * The files not parsed yet which refer to one of the classes by name.
+     */
+    private Map<String, SourceManifest.Entry> getDependents(List<String> classPaths, Set<String> parsed,
+                                                            Set<String> classes, SourceManifest manifest) throws IOException {
+        Map<String, SourceManifest.Entry> dependents = new LinkedHashMap<>();
+        if (classes.isEmpty()) {
+            return dependents;
+        }
+        Pattern names = Pattern.compile("\\b(" + classes.stream().map(Pattern::quote).collect(Collectors.joining("|")) + ")\\b");
+        for (String classPath : classPaths) {
+            if (parsed.contains(classPath)) {
+                continue;
+            }
+            // the names are ASCII in practice, whatever the encoding of the file
+            String code = new String(Files.readAllBytes(Paths.get(classPath)), StandardCharsets.ISO_8859_1);
+            if (names.matcher(code).find()) {
+                dependents.put(classPath, manifest.get(classPath));
+            }
+        }
+        return dependents;
+    }
+
+    private void parseClasses(Map<String, SourceManifest.Entry> classPaths, SourceManifest manifest) {
+        if (classPaths.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(getParseThreads(classPaths.size()), r -> {
+            Thread thread = new Thread(r, "chatunitest-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a parser per worker, they share the type solver of the dependencies
+        ThreadLocal<ClassParser> parsers = ThreadLocal.withInitial(ClassParser::new);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<String> group : getGroups(new ArrayList<>(classPaths.keySet()), manifest)) {
+                futures.add(pool.submit(() -> {
+                    for (String classPath : group) {
+                        SourceManifest.Entry entry = classPaths.get(classPath);
+                        List<ClassInfo> classInfos = new ArrayList<>();
+                        boolean extracted = parseClass(parsers.get(), classPath, classInfos);
+                        entry.classes = classInfos.stream().map(c -> c.className).collect(Collectors.toList());
+                        // the classes written are kept to be deleted, the file is parsed again by the next parse
+                        entry.hash = extracted ? entry.hash : null;
+                        entry.api = extracted ? getApi(classInfos) : null;
+                        manifest.put(classPath, entry);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("In ProjectParser.parse: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("In ProjectParser.parse: " + e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("In ProjectParser.parse: " + e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Group the files writing to the same class directories, in the order of the files.
+     */
+    private List<List<String>> getGroups(List<String> classPaths, SourceManifest manifest) throws IOException {
+        int[] parents = new int[classPaths.size()];
+        Map<Path, Integer> owners = new HashMap<>();
+        for (int i = 0; i < classPaths.size(); i++) {
+            parents[i] = i;
+            for (Path classDir : getClassDirs(classPaths.get(i), manifest)) {
+                Integer owner = owners.putIfAbsent(classDir, i);
+                if (owner != null) {
+                    parents[getRoot(parents, i)] = getRoot(parents, owner);
+                }
+            }
+        }
+        Map<Integer, List<String>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < classPaths.size(); i++) {
+            groups.computeIfAbsent(getRoot(parents, i), k -> new ArrayList<>()).add(classPaths.get(i));
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int getRoot(int[] parents, int i) {
+        while (parents[i] != i) {
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Add the files sharing a class directory with the files to parse: the directories are deleted before the parse,
+     * which deletes the info of these files too, so they are parsed again with them.
+     * @param classDirs the other class directories deleted, those of the removed files
+     * @return the files to parse, in the order of the scan
+     */
+    private Map<String, SourceManifest.Entry> withSharingFiles(List<String> classPaths, Map<String, SourceManifest.Entry> files,
+                                                               Set<Path> classDirs, SourceManifest manifest) throws IOException {
+        Set<Path> deleted = new HashSet<>(classDirs);
+        for (String classPath : files.keySet()) {
+            deleted.addAll(getClassDirs(classPath, manifest));
+        }
+        Set<String> sharing = new HashSet<>();
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (String classPath : classPaths) {
+                if (files.containsKey(classPath) || sharing.contains(classPath)) {
+                    continue;
+                }
+                Set<Path> extracted = getExtractedDirs(classPath, manifest);
+                if (!Collections.disjoint(extracted, deleted)) {
+                    sharing.add(classPath);
+                    deleted.addAll(extracted);
+                    found = true;
+                }
+            }
+        }
+        Map<String, SourceManifest.Entry> parsing = new LinkedHashMap<>();
+        for (String classPath : classPaths) {
+            if (files.containsKey(classPath)) {
+                parsing.put(classPath, files.get(classPath));
+            } else if (sharing.contains(classPath)) {
+                parsing.put(classPath, manifest.get(classPath));
+            }
+        }
+        return parsing;
+    }
+
+    /**
+     * The class directories the file wrote by the last parse.
+     */
+    private Set<Path> getExtractedDirs(String classPath, SourceManifest manifest) {
+        Set<Path> classDirs = new HashSet<>();
+        for (String className : manifest.getClasses(classPath)) {
+            classDirs.add(getOutputDir(classPath).resolve(className));
+        }
+        return classDirs;
+    }
+
+    /**
+     * The class directories the file wrote by the last parse and those it may write now.
+     * The classes are found without parsing the file: a name after "class" or "interface" in a comment or a string
+     * is taken too, which only groups a few more files.
+     */
+    private Set<Path> getClassDirs(String classPath, SourceManifest manifest) throws IOException {
+        Set<Path> classDirs = getExtractedDirs(classPath, manifest);
+        // the names are ASCII in practice, whatever the encoding of the file
+        String code = new String(Files.readAllBytes(Paths.get(classPath)), StandardCharsets.ISO_8859_1);
+        Matcher matcher = DECLARATION.matcher(code);
+        while (matcher.find()) {
+            classDirs.add(getOutputDir(classPath).resolve(matcher.group(1)));
+        }
+        return classDirs;
+    }
+
+    /**
+     * The hash of the classes and their method signatures, which the files using them resolve.
+     */
+    private static String getApi(List<ClassInfo> classInfos) {
+        List<String> api = new ArrayList<>();
+        for (ClassInfo classInfo : classInfos) {
+            api.add(classInfo.className);
+            for (String sig : classInfo.methodSignatures.keySet()) {
+                api.add(classInfo.className + "#" + sig);
+            }
+        }
+        Collections.sort(api);
+        return SourceManifest.hash(String.join("\n", api).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean parseClass(ClassParser classParser, String classPath, List<ClassInfo> classInfos) {
+        return classParser.extractClass(classPath, getOutputDir(classPath), classInfos);
+    }
+
+    private Path getOutputDir(String classPath) {
+        // 拿到包名
+        String packagePath = classPath.substring(srcFolderPath.length() + 1);
+        return Paths.get(outputPath, packagePath).getParent();
+    }
+
+    /**
+     * Delete the info of the classes extracted from the file by the last parse.
+     */
+    private void deleteClassInfo(String classPath, List<String> classes) throws IOException {
+        for (String className : classes) {
+            FileUtils.deleteDirectory(getOutputDir(classPath).resolve(className).toFile());
+        }
+    }
+
+    /**
+     * @return the files parsed, unchanged and removed by the last {@link #parse()}
+     */
+    public String getSummary() {
+        return String.format("%d files parsed (%d using changed classes), %d unchanged, %d removed",
+                parsedFiles, dependentFiles, unchangedFiles, removedFiles);
+    }
+
+    private static int getParseThreads(int files) {
+        int threads = Config.parseThreads > 0 ? Config.parseThreads : Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(threads, files));
     }
 
     public void addClassMap(String classPath) {
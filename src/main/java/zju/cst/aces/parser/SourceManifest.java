@@ -0,0 +1,151 @@
+package zju.cst.aces.parser;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The source files parsed into the parse output, with their size, modification time, content hash
+ * and the classes extracted from them. A file is parsed again only if it is added or its content changed:
+ * the hash is computed only when the size or the modification time differ from the manifest.
+ */
+public class SourceManifest {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private boolean changed = false;
+
+    public static class Entry {
+        public long size;
+        public long mtime;
+        public String hash;
+        // the names of the classes extracted from the file, each has its directory in the parse output
+        public List<String> classes = new ArrayList<>();
+        // the hash of the classes and their method signatures, the files using them are parsed again when it changes
+        public String api;
+
+        Entry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    private SourceManifest(Path file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * Load the manifest, an empty manifest if the file is missing or unreadable, so that every file is parsed.
+     */
+    public static SourceManifest load(Path file) {
+        Map<String, Entry> entries = null;
+        try {
+            entries = GSON.fromJson(Files.readString(file, StandardCharsets.UTF_8), new TypeToken<Map<String, Entry>>() {}.getType());
+        } catch (NoSuchFileException e) {
+            // not parsed yet, or parsed by a previous version
+        } catch (IOException | RuntimeException e) {
+            System.out.println("In SourceManifest.load: " + e);
+        }
+        return new SourceManifest(file, entries == null ? new HashMap<>() : entries);
+    }
+
+    /**
+     * @return the new entry of the file if it is added or its content changed since the last parse, null if not
+     */
+    public Entry check(String path) throws IOException {
+        File source = new File(path);
+        long size = source.length();
+        long mtime = source.lastModified();
+        Entry entry = entries.get(path);
+        // an entry without hash is a file whose classes could not all be extracted
+        if (entry != null && entry.hash != null && entry.size == size && entry.mtime == mtime) {
+            return null;
+        }
+        String hash = hash(Files.readAllBytes(source.toPath()));
+        if (entry != null && hash.equals(entry.hash)) {
+            // touched but not changed
+            entry.size = size;
+            entry.mtime = mtime;
+            changed = true;
+            return null;
+        }
+        return new Entry(size, mtime, hash);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @return the classes extracted from the file by the last parse
+     */
+    public List<String> getClasses(String path) {
+        Entry entry = entries.get(path);
+        return entry == null ? Collections.emptyList() : entry.classes;
+    }
+
+    /**
+     * @return the files in the manifest which are not among the given files
+     */
+    public List<String> getRemoved(Collection<String> paths) {
+        Set<String> removed = new TreeSet<>(entries.keySet());
+        removed.removeAll(paths);
+        return new ArrayList<>(removed);
+    }
+
+    public synchronized void put(String path, Entry entry) {
+        entries.put(path, entry);
+        changed = true;
+    }
+
+    public synchronized void remove(String path) {
+        entries.remove(path);
+        changed = true;
+    }
+
+    public void save() {
+        if (!changed) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.writeString(tmp, GSON.toJson(new TreeMap<>(entries)), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("In SourceManifest.save: " + e);
+        }
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("In SourceManifest.hash: " + e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package zju.cst.aces.parser;
+
+import com.github.javaparser.resolution.TypeSolver;
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.resolution.model.SymbolReference;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.cache.Cache;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import org.apache.maven.project.DefaultProjectBuildingRequest;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectBuildingRequest;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import zju.cst.aces.utils.Config;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type solvers of the project. The dependency graph is built and the dependency jars are indexed once per session,
+ * into a thread-safe solver of the JDK and the jars shared by all parsers. The types of the jars are kept in a
+ * {@link JarTypeIndex} in tmpOutput, so that a later run starts without opening the jars.
+ * Each parser gets its own combined solver and symbol solver around it with the solvers of the source roots,
+ * since the caches of the symbol resolution and the parsed sources are not thread-safe.
+ */
+public class TypeSolvers {
+    private static final AtomicLong symbolSolvers = new AtomicLong();
+    private static final AtomicLong dependencySolvers = new AtomicLong();
+    private static final AtomicLong buildMillis = new AtomicLong();
+    private static final AtomicLong dependencyHits = new AtomicLong();
+    private static final AtomicLong dependencyMisses = new AtomicLong();
+    private static final AtomicLong sourceHits = new AtomicLong();
+    private static final AtomicLong sourceMisses = new AtomicLong();
+
+    private static MavenProject project;
+    private static TypeSolver dependencySolver;
+    private static int jars = 0;
+
+    /**
+     * A new symbol solver of the project, for a parser used by one thread at a time.
+     */
+    public static JavaSymbolSolver newSymbolSolver() {
+        CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver(e -> false, new ArrayList<>(),
+                new CountingCache<>(sourceHits, sourceMisses));
+        combinedTypeSolver.add(new SharedTypeSolver(getDependencySolver()));
+        for (String src : Config.project.getCompileSourceRoots()) {
+            if (new File(src).exists()) {
+                combinedTypeSolver.add(new JavaParserTypeSolver(src));
+            }
+        }
+        symbolSolvers.incrementAndGet();
+        return new JavaSymbolSolver(combinedTypeSolver);
+    }
+
+    /**
+     * The solver of the JDK and the dependency jars of the project, built once per project.
+     */
+    private static synchronized TypeSolver getDependencySolver() {
+        if (dependencySolver != null && project == Config.project) {
+            return dependencySolver;
+        }
+        long start = System.currentTimeMillis();
+        CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver(e -> false, new ArrayList<>(),
+                new CountingCache<>(dependencyHits, dependencyMisses));
+        combinedTypeSolver.add(new ReflectionTypeSolver());
+        jars = 0;
+        JarTypeIndex index = JarTypeIndex.load(Config.tmpOutput == null ? null : Paths.get(Config.tmpOutput, "jar-index.bin"));
+        try {
+            ProjectBuildingRequest buildingRequest = new DefaultProjectBuildingRequest(Config.session.getProjectBuildingRequest() );
+            buildingRequest.setProject(Config.project);
+            DependencyNode root = Config.dependencyGraphBuilder.buildDependencyGraph(buildingRequest, null);
+            Set<DependencyNode> depSet = new HashSet<>();
+            walkDep(root, depSet);
+            for (DependencyNode dep : depSet) {
+                if (dep.getArtifact().getFile() != null) {
+                    combinedTypeSolver.add(index.getSolver(dep.getArtifact().getFile()));
+                    jars++;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println(e);
+        }
+        index.save();
+        project = Config.project;
+        dependencySolver = combinedTypeSolver;
+        dependencySolvers.incrementAndGet();
+        buildMillis.addAndGet(System.currentTimeMillis() - start);
+        return dependencySolver;
+    }
+
+    private static void walkDep(DependencyNode node, Set<DependencyNode> depSet) {
+        depSet.add(node);
+        for (DependencyNode dep : node.getChildren()) {
+            walkDep(dep, depSet);
+        }
+    }
+
+    public static String getStats() {
+        return String.format("Type solvers: symbol solvers: %d, dependency solvers: %d (%d jars, built in %dms, %s), "
+                        + "type cache of the dependencies: %d hits, %d misses, of the sources: %d hits, %d misses",
+                symbolSolvers.get(), dependencySolvers.get(), jars, buildMillis.get(), JarTypeIndex.getStats(),
+                dependencyHits.get(), dependencyMisses.get(), sourceHits.get(), sourceMisses.get());
+    }
+
+    /**
+     * The shared solver as an element of the solver of a parser. The shared solver keeps its own root,
+     * since a type solver has a single parent.
+     */
+    private static class SharedTypeSolver implements TypeSolver {
+        private final TypeSolver solver;
+        private TypeSolver parent;
+
+        SharedTypeSolver(TypeSolver solver) {
+            this.solver = solver;
+        }
+
+        @Override
+        public TypeSolver getParent() {
+            return parent;
+        }
+
+        @Override
+        public void setParent(TypeSolver parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+            return solver.tryToSolveType(name);
+        }
+    }
+
+    /**
+     * A thread-safe type cache counting its hits and misses.
+     */
+    private static class CountingCache<K, V> implements Cache<K, V> {
+        private final Map<K, V> values = new ConcurrentHashMap<>();
+        private final AtomicLong hits;
+        private final AtomicLong misses;
+
+        CountingCache(AtomicLong hits, AtomicLong misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        @Override
+        public void put(K key, V value) {
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+
+        @Override
+        public Optional<V> get(K key) {
+            V value = values.get(key);
+            (value == null ? misses : hits).incrementAndGet();
+            return Optional.ofNullable(value);
+        }
+
+        @Override
+        public void remove(K key) {
+            values.remove(key);
+        }
+
+        @Override
+        public void removeAll() {
+            values.clear();
+        }
+
+        @Override
+        public boolean contains(K key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public long size() {
+            return values.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return values.isEmpty();
+        }
+    }
+}
@@ -2,7 +2,6 @@ package zju.cst.aces.runner;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import okhttp3.Response;
 import zju.cst.aces.ProjectTestMojo;
 import zju.cst.aces.utils.*;
 
@@ -15,6 +14,8 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 public class AbstractRunner extends ProjectTestMojo {
@@ -22,11 +23,15 @@ public class AbstractRunner extends ProjectTestMojo {
     public static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
     public static final String separator = "_";
     public static int testTimeOut = 8000;
+    public static final String FOCAL_PROMPT = "The focal method is `%s` in the focal class `%s`, and their information is\n```%s```";
+    public static final String DEP_CLASS_PROMPT = "\nThe brief information of dependent class `%s` is\n```%s```";
+    public static final String DEP_METHOD_PROMPT = "\nThe brief information of dependent method `%s` is\n```%s```";
     public Path parseOutputPath;
     public Path testOutputPath;
     public Path errorOutputPath;
     public String className;
     public String fullClassName;
+    private static volatile ExecutorService workerPool;
 
     public AbstractRunner(String fullClassname, String output, String testPath) throws IOException {
         fullClassName = fullClassname;
@@ -36,6 +41,25 @@ public class AbstractRunner extends ProjectTestMojo {
         errorOutputPath = parseOutputPath.getParent().resolve("error-message");
     }
 
+    /**
+     * The pool for the CPU-bound steps (code extraction, test compilation) between two LLM requests,
+     * the requests themselves are in flight without occupying any thread.
+     */
+    public static ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            synchronized (AbstractRunner.class) {
+                if (workerPool == null) {
+                    workerPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                        Thread thread = new Thread(r, "chatunitest-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return workerPool;
+    }
+
     public List<Message> generateMessages(PromptInfo promptInfo) throws IOException {
         List<Message> messages = new ArrayList<>();
         if (promptInfo.errorMsg == null) { // round 1
@@ -48,25 +72,22 @@ public class AbstractRunner extends ProjectTestMojo {
     public String generateUserPrompt(PromptInfo promptInfo) throws IOException {
         String user = null;
         if (promptInfo.errorMsg == null) {
-            user = String.format("The focal method is `%s` in the focal class `%s`, and their information is\n```%s```",
-                    promptInfo.methodSignature, promptInfo.className, promptInfo.info);
+            user = String.format(FOCAL_PROMPT, promptInfo.methodSignature, promptInfo.className, promptInfo.info);
             if (promptInfo.hasDep) {
                 for (Map<String, String> cDeps : promptInfo.constructorDeps) {
                     for (Map.Entry<String, String> entry : cDeps.entrySet()) {
-                        user += String.format("\nThe brief information of dependent class `%s` is\n```%s```", entry.getKey(), entry.getValue());
+                        user += String.format(DEP_CLASS_PROMPT, entry.getKey(), entry.getValue());
                     }
                 }
                 for (Map<String, String> mDeps : promptInfo.methodDeps) {
                     for (Map.Entry<String, String> entry : mDeps.entrySet()) {
-                        user += String.format("\nThe brief information of dependent method `%s` is\n```%s```", entry.getKey(), entry.getValue());
+                        user += String.format(DEP_METHOD_PROMPT, entry.getKey(), entry.getValue());
                     }
                 }
             }
         } else {
-            int promptTokens = TokenCounter.countToken(promptInfo.unitTest)
-                    + TokenCounter.countToken(promptInfo.methodSignature)
-                    + TokenCounter.countToken(promptInfo.className)
-                    + TokenCounter.countToken(promptInfo.info);
+            int promptTokens = TokenCounter.countTokens(promptInfo.unitTest, promptInfo.methodSignature,
+                    promptInfo.className, promptInfo.info);
             ErrorProcesser errorProcesser = new ErrorProcesser();
             int allowedTokens = Math.max(Config.maxPromptTokens - promptTokens, Config.minErrorTokens);
             String processedErrorMsg = errorProcesser.processErrorMessage(promptInfo.errorMsg, allowedTokens);
@@ -118,12 +139,13 @@ public class AbstractRunner extends ProjectTestMojo {
                 .collect(Collectors.joining("\n"));
     }
 
-    public String parseResponse(Response response) {
-        if (response == null) {
+    /**
+     * Extract the test code from the content of the response, the content is null when no response is got.
+     */
+    public String parseContent(String content) {
+        if (content == null) {
             return "";
         }
-        Map<String, Object> body = GSON.fromJson(response.body().charStream(), Map.class);
-        String content = ((Map<String, String>) ((Map<String, Object>) ((ArrayList<?>) body.get("choices")).get(0)).get("message")).get("content");
         return extractCode(content);
     }
 
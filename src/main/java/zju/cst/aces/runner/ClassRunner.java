@@ -38,18 +38,8 @@ public class ClassRunner extends AbstractRunner {
     }
 
     public ClassRunner(String fullClassName, String parsePath, String testPath, String srcFolderPath, String outputPath, String classPath) throws IOException {
-        super(fullClassName, parsePath, testPath);
-        infoDir = new File(parseOutputPath + File.separator + fullClassName.replace(".", File.separator));
-        if (!infoDir.isDirectory()) {
-            log.error("Error: " + fullClassName + " no parsed info found");
-        }
-        File classInfoFile = new File(infoDir + File.separator + "class.json");
-        classInfo = GSON.fromJson(Files.readString(classInfoFile.toPath(), StandardCharsets.UTF_8), ClassInfo.class);
-
-        String packagePath = classPath.substring(srcFolderPath.length() + 1);
-        Path output = Paths.get(outputPath, packagePath).getParent();
-
-        classParser = new ClassParser(output);
+        this(fullClassName, parsePath, testPath);
+        classParser = new ClassParser();
     }
 
     public void start() throws IOException {
@@ -81,7 +71,10 @@ public class ClassRunner extends AbstractRunner {
     }
 
     private String mergeClassAndGenerate(List<Path> classPath) throws IOException {
-        JavaParser parser = ClassParser.parser;
+        if (classParser == null) {
+            classParser = new ClassParser();
+        }
+        JavaParser parser = classParser.getParser();
         // 得到一个sig到MethodDeclaration的映射
         HashMap<String, MethodDeclaration> methodSigMap = new HashMap<>();
         // 开始准备生成
@@ -195,42 +188,51 @@ public class ClassRunner extends AbstractRunner {
     }
 
     public void methodJob() {
-        ExecutorService executor = Executors.newFixedThreadPool(methodThreads);
-        List<Future<String>> futures = new ArrayList<>();
-        for (String mSig : classInfo.methodSignatures.keySet()) {
-            Callable<String> callable = new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    MethodInfo methodInfo = getMethodInfo(classInfo, mSig);
-                    if (methodInfo == null) {
-                        return "No parsed info found for " + mSig + " in " + fullClassName;
-                    }
-                    new MethodRunner(fullClassName, parseOutputPath.toString(), testOutputPath.toString(), methodInfo).start();
-                    return "Processed " + mSig;
-                }
-            };
-            Future<String> future = executor.submit(callable);
-            futures.add(future);
+        try {
+            methodJobAsync().join();
+        } catch (CompletionException e) {
+            // already logged by each method
         }
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() {
-                executor.shutdownNow();
-            }
-        });
-
-        for (Future<String> future : futures) {
+    /**
+     * Start the generation of all methods at once, the requests in flight are bounded by the HTTP client
+     * and the CPU-bound steps run on the worker pool.
+     * @return the future completed when all methods are finished
+     */
+    public CompletableFuture<Void> methodJobAsync() {
+        List<Path> paths = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (String mSig : classInfo.methodSignatures.keySet()) {
             try {
-                String result = future.get();
-                System.out.println(result);
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
+                MethodInfo methodInfo = getMethodInfo(classInfo, mSig);
+                if (methodInfo == null) {
+                    System.out.println("No parsed info found for " + mSig + " in " + fullClassName);
+                    continue;
+                }
+                CompletableFuture<Void> future = new MethodRunner(fullClassName, parseOutputPath.toString(),
+                        testOutputPath.toString(), methodInfo)
+                        .runAsync(paths)
+                        .whenComplete((result, e) -> {
+                            if (e != null) {
+                                log.error("[ChatTester] Generate tests for method " + mSig + " failed: " + e);
+                            } else {
+                                System.out.println("Processed " + mSig);
+                            }
+                        });
+                futures.add(future);
+            } catch (IOException e) {
+                log.error("[ChatTester] Generate tests for method " + mSig + " failed: " + e);
             }
         }
-
-        executor.shutdown();
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
     }
 
+    /**
+     * Generate the prompt info of a focal method without dependencies, packed into the budget of {@link Config#maxPromptTokens}
+     * like {@link #generatePromptInfoWithDep}: the focal method and the class signature, the fields the method uses,
+     * the brief methods of the class, then the other fields. The fields and methods taken keep their order in the class.
+     */
     public PromptInfo generatePromptInfoWithoutDep(ClassInfo classInfo, MethodInfo methodInfo) {
         PromptInfo promptInfo = new PromptInfo(
                 false,
@@ -238,8 +240,48 @@ public class ClassRunner extends AbstractRunner {
                 methodInfo.methodName,
                 methodInfo.methodSignature,
                 methodInfo.sourceCode);
-        String fields = joinLines(classInfo.fields);
-        String methods = filterAndJoinLines(classInfo.briefMethods, methodInfo.brief);
+        classInfo.countTokens();
+        methodInfo.countTokens();
+        PromptPacker packer = new PromptPacker();
+        packer.require(TokenCounter.countToken(String.format(FOCAL_PROMPT, methodInfo.methodSignature, classInfo.className, ""))
+                + classInfo.classSignatureTokens + classInfo.importTokens + methodInfo.sourceCodeTokens);
+
+        // the fields the method uses first, all of them if parsed by a previous version which did not record them
+        List<Integer> usedFields = methodInfo.usedFields;
+        if (usedFields == null) {
+            usedFields = new ArrayList<>();
+            for (int i = 0; methodInfo.useField && i < classInfo.fields.size(); i++) {
+                usedFields.add(i);
+            }
+        }
+        boolean[] takenFields = new boolean[classInfo.fields.size()];
+        for (int i : usedFields) {
+            takenFields[i] = packer.offer(classInfo.fieldTokens.get(i));
+        }
+        List<String> briefMethods = new ArrayList<>();
+        for (int i = 0; i < classInfo.briefMethods.size(); i++) {
+            String brief = classInfo.briefMethods.get(i);
+            if (!brief.equals(methodInfo.brief) && packer.offer(classInfo.briefMethodTokens.get(i))) {
+                briefMethods.add(brief);
+            }
+        }
+        List<String> taken = new ArrayList<>();
+        for (int i = 0; i < classInfo.fields.size(); i++) {
+            if (!usedFields.contains(i)) {
+                takenFields[i] = packer.offer(classInfo.fieldTokens.get(i));
+            }
+            if (takenFields[i]) {
+                taken.add(classInfo.fields.get(i));
+            }
+        }
+        packer.finish();
+        if (packer.getDropped() > 0) {
+            log.debug("Prompt of " + className + "." + methodInfo.methodSignature + " packed into " + packer.getUsed()
+                    + " tokens, " + packer.getDropped() + " pieces dropped");
+        }
+
+        String fields = joinLines(taken);
+        String methods = joinLines(briefMethods);
         String imports = joinLines(classInfo.imports);
 
         String information = classInfo.packageDeclaration
@@ -256,6 +298,13 @@ public class ClassRunner extends AbstractRunner {
         return promptInfo;
     }
 
+    /**
+     * Generate the prompt info of a focal method with its dependencies, packed into the budget of {@link Config#maxPromptTokens}.
+     * The pieces are taken in the order of their priority: the focal method and the class signature,
+     * the fields the method uses, the direct dependencies (the methods of the class it calls, the constructors,
+     * the signatures, constructors and called methods of the dependent classes), then the getters and setters
+     * and the fields of the dependent classes.
+     */
     public PromptInfo generatePromptInfoWithDep(ClassInfo classInfo, MethodInfo methodInfo) throws IOException {
         PromptInfo promptInfo = new PromptInfo(
                 true,
@@ -263,45 +312,91 @@ public class ClassRunner extends AbstractRunner {
                 methodInfo.methodName,
                 methodInfo.methodSignature,
                 methodInfo.sourceCode);
+        classInfo.countTokens();
+        methodInfo.countTokens();
+        PromptPacker packer = new PromptPacker();
+        packer.require(TokenCounter.countToken(String.format(FOCAL_PROMPT, methodInfo.methodSignature, classInfo.className, ""))
+                + classInfo.classSignatureTokens + classInfo.importTokens + methodInfo.sourceCodeTokens);
+
+        List<String> fields = new ArrayList<>();
+        if (methodInfo.usedFields != null) {
+            for (int i : methodInfo.usedFields) {
+                if (packer.offer(classInfo.fieldTokens.get(i))) {
+                    fields.add(classInfo.fields.get(i));
+                }
+            }
+        } else if (methodInfo.useField) {
+            // parsed by a previous version, which did not record the fields used
+            fields = packer.offer(classInfo.fields, classInfo.fieldTokens);
+        }
+
         List<String> otherBriefMethods = new ArrayList<>();
+        List<DepInfo> methodDeps = new ArrayList<>();
         for (Map.Entry<String, Set<String>> entry : methodInfo.dependentMethods.entrySet()) {
             String depClassName = entry.getKey();
             if (depClassName.equals(className)) {
                 Set<String> otherSig = methodInfo.dependentMethods.get(depClassName);
                 for (String otherMethod : otherSig) {
                     MethodInfo otherMethodInfo = getMethodInfo(classInfo, otherMethod);
-                    if (otherMethodInfo == null) {
+                    if (otherMethodInfo == null || !packer.offer(otherMethodInfo.countTokens().briefTokens)) {
                         continue;
                     }
                     otherBriefMethods.add(otherMethodInfo.brief);
                 }
                 continue;
             }
-            Set<String> depMethods = entry.getValue();
-            promptInfo.addMethodDeps(getDepInfo(promptInfo, depClassName, depMethods));
+            DepInfo depInfo = getDepInfo(depClassName, entry.getValue(), DEP_METHOD_PROMPT, packer);
+            if (depInfo != null) {
+                methodDeps.add(depInfo);
+            }
         }
+        List<String> constructors = classInfo.hasConstructor
+                ? packer.offer(classInfo.constructors, classInfo.constructorTokens) : new ArrayList<>();
+        List<DepInfo> constructorDeps = new ArrayList<>();
         for (Map.Entry<String, Set<String>> entry : classInfo.constructorDeps.entrySet()) {
             String depClassName = entry.getKey();
             Set<String> depMethods = entry.getValue();
             if (methodInfo.dependentMethods.containsKey(depClassName)) {
                 continue;
             }
-            promptInfo.addConstructorDeps(getDepInfo(promptInfo, depClassName, depMethods));
+            DepInfo depInfo = getDepInfo(depClassName, depMethods, DEP_CLASS_PROMPT, packer);
+            if (depInfo != null) {
+                constructorDeps.add(depInfo);
+            }
+        }
+
+        List<String> getterSetters = methodInfo.useField
+                ? packer.offer(classInfo.getterSetters, classInfo.getterSetterTokens) : new ArrayList<>();
+        for (DepInfo depInfo : methodDeps) {
+            depInfo.packGetterSettersAndFields(packer);
+        }
+        for (DepInfo depInfo : constructorDeps) {
+            depInfo.packGetterSettersAndFields(packer);
+        }
+        packer.finish();
+        if (packer.getDropped() > 0) {
+            log.debug("Prompt of " + className + "." + methodInfo.methodSignature + " packed into " + packer.getUsed()
+                    + " tokens, " + packer.getDropped() + " pieces dropped");
+        }
+
+        for (DepInfo depInfo : methodDeps) {
+            promptInfo.addMethodDeps(depInfo.toMap());
+        }
+        for (DepInfo depInfo : constructorDeps) {
+            promptInfo.addConstructorDeps(depInfo.toMap());
         }
 
-        String fields = joinLines(classInfo.fields);
         String imports = joinLines(classInfo.imports);
 
         String information = classInfo.packageDeclaration
                 + "\n" + imports
                 + "\n" + classInfo.classSignature
                 + " {\n";
-        //TODO: handle used fields instead of all fields
-        if (methodInfo.useField) {
-            information += fields + "\n" + joinLines(classInfo.getterSetters) + "\n";
+        if (!fields.isEmpty() || !getterSetters.isEmpty()) {
+            information += joinLines(fields) + "\n" + joinLines(getterSetters) + "\n";
         }
         if (classInfo.hasConstructor) {
-            information += joinLines(classInfo.constructors) + "\n";
+            information += joinLines(constructors) + "\n";
         }
         information += joinLines(otherBriefMethods) + "\n";
         information += methodInfo.sourceCode + "\n}";
@@ -325,34 +420,71 @@ public class ClassRunner extends AbstractRunner {
         return GSON.fromJson(Files.readString(depMethodInfoPath, StandardCharsets.UTF_8), MethodInfo.class);
     }
 
-    public Map<String, String> getDepInfo(PromptInfo promptInfo, String depClassName, Set<String> depMethods) throws IOException {
+    /**
+     * Pack the brief information of a dependent class: its signature, constructors and the methods called,
+     * the getters, setters and fields are packed later by {@link DepInfo#packGetterSettersAndFields}.
+     * @return null if the class is not parsed or its signature does not fit into the budget
+     */
+    private DepInfo getDepInfo(String depClassName, Set<String> depMethods, String template, PromptPacker packer) throws IOException {
         Path depClassInfoPath = parseOutputPath.resolve(depClassName).resolve("class.json");
         if (!depClassInfoPath.toFile().exists()) {
             return null;
         }
         ClassInfo depClassInfo = GSON.fromJson(Files.readString(depClassInfoPath, StandardCharsets.UTF_8), ClassInfo.class);
-
-        String classSig = depClassInfo.classSignature;
-        String fields = joinLines(depClassInfo.fields);
-        String constructors = joinLines(depClassInfo.constructors);
-        Map<String, String> methodDeps = new HashMap<>();
-
-        String basicInfo = classSig + " {\n" + fields + "\n";
-        if (depClassInfo.hasConstructor) {
-            basicInfo += constructors + "\n";
+        depClassInfo.countTokens();
+        if (!packer.offer(TokenCounter.countToken(String.format(template, depClassName, " {\n}"))
+                + depClassInfo.classSignatureTokens)) {
+            return null;
         }
-
-        String briefDepMethods = "";
+        DepInfo depInfo = new DepInfo(depClassName, depClassInfo);
         for (String sig : depMethods) {
             //TODO: identify used fields in dependent class
             MethodInfo depMethodInfo = getMethodInfo(depClassInfo, sig);
-            if (depMethodInfo == null) {
+            if (depMethodInfo == null || !packer.offer(depMethodInfo.countTokens().briefTokens)) {
                 continue;
             }
-            briefDepMethods += depMethodInfo.brief + "\n";
+            depInfo.methods.add(depMethodInfo.brief);
+        }
+        if (depClassInfo.hasConstructor) {
+            depInfo.constructors = packer.offer(depClassInfo.constructors, depClassInfo.constructorTokens);
+        }
+        return depInfo;
+    }
+
+    /**
+     * The pieces of the brief information of a dependent class taken into the prompt.
+     */
+    private class DepInfo {
+        final String className;
+        final ClassInfo classInfo;
+        List<String> fields = new ArrayList<>();
+        List<String> constructors = new ArrayList<>();
+        List<String> getterSetters = new ArrayList<>();
+        final List<String> methods = new ArrayList<>();
+
+        DepInfo(String className, ClassInfo classInfo) {
+            this.className = className;
+            this.classInfo = classInfo;
+        }
+
+        void packGetterSettersAndFields(PromptPacker packer) {
+            getterSetters = packer.offer(classInfo.getterSetters, classInfo.getterSetterTokens);
+            fields = packer.offer(classInfo.fields, classInfo.fieldTokens);
+        }
+
+        Map<String, String> toMap() {
+            String basicInfo = classInfo.classSignature + " {\n" + joinLines(fields) + "\n";
+            if (classInfo.hasConstructor) {
+                basicInfo += joinLines(constructors) + "\n";
+            }
+            String briefDepMethods = "";
+            for (String brief : methods) {
+                briefDepMethods += brief + "\n";
+            }
+            String getterSetter = joinLines(getterSetters) + "\n";
+            Map<String, String> methodDeps = new HashMap<>();
+            methodDeps.put(className, basicInfo + getterSetter + briefDepMethods + "}");
+            return methodDeps;
         }
-        String getterSetter = joinLines(depClassInfo.getterSetters) + "\n";
-        methodDeps.put(depClassName, basicInfo + getterSetter + briefDepMethods + "}");
-        return methodDeps;
     }
 }
@@ -1,6 +1,5 @@
 package zju.cst.aces.runner;
 
-import okhttp3.Response;
 import zju.cst.aces.utils.*;
 
 import java.io.File;
@@ -18,101 +17,232 @@ public class MethodRunner extends ClassRunner {
         this.methodInfo = methodInfo;
     }
 
+    @Override
+    public void start() throws IOException {
+        run(new ArrayList<>());
+    }
 
     public void run(List<Path> paths) throws IOException {
+        runAsync(paths).join();
+    }
+
+    /**
+     * Generate tests for the method, the returned future is completed when all candidates are finished.
+     */
+    public CompletableFuture<Void> runAsync(List<Path> paths) {
         if (Config.stopWhenSuccess == false && Config.enableMultithreading == true) {
-            ExecutorService executor = Executors.newFixedThreadPool(Config.testNumber);
-            List<Future<String>> futures = new ArrayList<>();
+            if (Config.multipleChoices && Config.testNumber > 1 && LlmBackend.get().supportsMultipleChoices()) {
+                return startCandidatesAsync(paths);
+            }
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
             for (int num = 1; num <= Config.testNumber; num++) {
-                int finalNum = num;
-                Callable<String> callable = new Callable<String>() {
-                    @Override
-                    public String call() throws Exception {
-                        startRounds(finalNum, paths);
-                        return "";
-                    }
-                };
-                Future<String> future = executor.submit(callable);
-                futures.add(future);
+                futures.add(startRoundsAsync(num, paths));
             }
-            Runtime.getRuntime().addShutdownHook(new Thread() {
-                public void run() {
-                    executor.shutdownNow();
-                }
-            });
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        } else {
+            // 单线程执行部分
+            return runSequentially(1, paths).thenApply(success -> null);
+        }
+    }
 
-            for (Future<String> future : futures) {
-                try {
-                    String result = future.get();
-                    System.out.println(result);
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                }
+    private CompletableFuture<Boolean> runSequentially(int num, List<Path> paths) {
+        return startRoundsAsync(num, paths).thenCompose(success -> {
+            if (success || num >= Config.testNumber) {
+                return CompletableFuture.completedFuture(success);
             }
+            return runSequentially(num + 1, paths);
+        });
+    }
 
-            executor.shutdown();
-        } else {
-            // 单线程执行部分
-            for (int num = 1; num <= Config.testNumber; num++) {
-                if (startRounds(num, paths)) {
-                    break;
+    public CompletableFuture<Boolean> startRoundsAsync(final int num, List<Path> paths) {
+        String testName = getTestName(num);
+        log.info("\n==========================\n[ChatTester] Generating test for method < "
+                + methodInfo.methodName + " > number " + num + "...\n");
+        return startRound(num, 1, null, testName, paths).exceptionally(e -> failed(num, e));
+    }
+
+    /**
+     * Ask for all candidates in the first round with a single request of testNumber choices,
+     * then each choice is repaired in its own rounds like a candidate started alone.
+     */
+    private CompletableFuture<Void> startCandidatesAsync(List<Path> paths) {
+        log.info("\n==========================\n[ChatTester] Generating " + Config.testNumber
+                + " tests for method < " + methodInfo.methodName + " > ...\n");
+        PromptInfo promptInfo;
+        List<Message> prompt;
+        try {
+            promptInfo = generatePromptInfo();
+            prompt = generateMessages(promptInfo);
+        } catch (IOException e) {
+            log.error("[ChatTester] Generate tests for method < " + methodInfo.methodName + " > failed: " + e);
+            return CompletableFuture.completedFuture(null);
+        }
+        log.debug("[Prompt]:\n" + prompt.toString());
+
+        ChatRequest chatRequest = new ChatRequest(prompt, 1);
+        chatRequest.setN(Config.testNumber);
+        chatRequest.setPriority(getPriority(1, 1));
+        limitMaxTokens(chatRequest);
+        chatRequest.setModel(ModelCascade.getModel(methodInfo, 1, promptInfo));
+        CompletableFuture<ChatResponse> response = recordRequest(chatRequest.model, new AskGPT().chatAsync(chatRequest));
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int num = 1; num <= Config.testNumber; num++) {
+            final int index = num - 1;
+            // a missing choice is a failed first round, as if no response was got,
+            // unless the budget reduced the choices of the request
+            CompletableFuture<String> content = response.thenApply(r -> {
+                if (r != null && index >= r.choices.size() && BudgetGovernor.isEnabled()) {
+                    throw new CompletionException(new ChatException(ChatException.Kind.BUDGET_EXHAUSTED, -1, -1,
+                            "The budget of the run allowed " + r.choices.size() + " of " + Config.testNumber + " choices"));
                 }
-            }
+                return r == null ? null : r.getContent(index);
+            });
+            futures.add(processRound(num, 1, promptInfo.copy(), getTestName(num), paths, chatRequest.model, content)
+                    .exceptionally(e -> failed(index + 1, e)));
         }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
     }
 
-    public boolean startRounds(final int num, List<Path> paths) throws IOException {
-        PromptInfo promptInfo = null;
-        String testName = className + separator + methodInfo.methodName + separator
+    private String getTestName(int num) {
+        return className + separator + methodInfo.methodName + separator
                 + classInfo.methodSignatures.get(methodInfo.methodSignature) + separator + num + separator + "Test";
-        log.info("\n==========================\n[ChatTester] Generating test for method < "
-                + methodInfo.methodName + " > number " + num + "...\n");
-        for (int rounds = 1; rounds <= Config.maxRounds; rounds++) {
+    }
+
+    private PromptInfo generatePromptInfo() throws IOException {
+        if (methodInfo.dependentMethods.size() > 0) {
+            return generatePromptInfoWithDep(classInfo, methodInfo);
+        }
+        return generatePromptInfoWithoutDep(classInfo, methodInfo);
+    }
+
+    /**
+     * The completion tokens of a test grow with the focal method: a base for the imports, setup and
+     * the test class, plus a few test lines per token of the method, up to {@link Config#maxResponseTokens}
+     * and to the room the prompt leaves in the context of the model.
+     * max_tokens is not sent unless {@link Config#maxResponseTokens} is set.
+     */
+    private void limitMaxTokens(ChatRequest chatRequest) {
+        if (Config.maxResponseTokens <= 0) {
+            return;
+        }
+        int methodTokens = TokenCounter.countToken(methodInfo.sourceCode);
+        chatRequest.limitMaxTokens(Math.min(Config.maxResponseTokens, 2048 + 4 * methodTokens));
+    }
+
+    private ChatRequest.Priority getPriority(int num, int rounds) {
+        if (rounds > 1) {
+            return ChatRequest.Priority.REPAIR;
+        }
+        if (num > 1) {
+            return ChatRequest.Priority.EXTRA_CANDIDATE;
+        }
+        return methodInfo.isPublic ? ChatRequest.Priority.FIRST_ROUND_PUBLIC : ChatRequest.Priority.FIRST_ROUND;
+    }
+
+    private boolean failed(int num, Throwable e) {
+        if (BudgetGovernor.isExhausted(e)) {
+            log.warn("[ChatTester] Budget exhausted, test for method < " + methodInfo.methodName + " > number "
+                    + num + " stopped");
+            BudgetGovernor.addExhaustedMethod(fullClassName + "#" + methodInfo.methodSignature);
+            return false;
+        }
+        log.error("[ChatTester] Generate test for method < " + methodInfo.methodName + " > number "
+                + num + " failed: " + e);
+        return false;
+    }
+
+    /**
+     * Send the prompt of this round, the response is processed on the worker pool
+     * and the next round is chained if the test is not generated successfully.
+     */
+    private CompletableFuture<Boolean> startRound(int num, int rounds, PromptInfo promptInfo, String testName, List<Path> paths) {
+        if (rounds > Config.maxRounds) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<Message> prompt;
+        try {
             if (promptInfo == null) {
                 log.info("Generating test for method < " + methodInfo.methodName + " > round " + rounds + " ...");
-                if (methodInfo.dependentMethods.size() > 0) {
-                    promptInfo = generatePromptInfoWithDep(classInfo, methodInfo);
-                } else {
-                    promptInfo = generatePromptInfoWithoutDep(classInfo, methodInfo);
-                }
+                promptInfo = generatePromptInfo();
             } else {
                 log.info("Fixing test for method < " + methodInfo.methodName + " > round " + rounds + " ...");
             }
-            List<Message> prompt = generateMessages(promptInfo);
-            log.debug("[Prompt]:\n" + prompt.toString());
-
-            AskGPT askGPT = new AskGPT();
-            Response response = askGPT.askChatGPT(prompt);
-            Path savePath = testOutputPath.resolve(classInfo.packageDeclaration
-                            .replace(".", File.separator)
-                            .replace("package ", "")
-                            .replace(";", ""))
-                    .resolve(testName + ".java");
-
-            String code = parseResponse(response);
-            if (code.isEmpty()) {
-                log.info("Test for method < " + methodInfo.methodName + " > extract code failed");
-                continue;
+            prompt = generateMessages(promptInfo);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        log.debug("[Prompt]:\n" + prompt.toString());
+
+        ChatRequest chatRequest = new ChatRequest(prompt, num);
+        chatRequest.setPriority(getPriority(num, rounds));
+        limitMaxTokens(chatRequest);
+        chatRequest.setModel(ModelCascade.getModel(methodInfo, rounds, promptInfo));
+        AskGPT askGPT = new AskGPT();
+        return processRound(num, rounds, promptInfo, testName, paths, chatRequest.model,
+                recordRequest(chatRequest.model, askGPT.askChatGPTAsync(chatRequest)));
+    }
+
+    /**
+     * Record the latency of the request in the statistics of the model once its response arrives.
+     */
+    private static <T> CompletableFuture<T> recordRequest(String model, CompletableFuture<T> response) {
+        long start = System.currentTimeMillis();
+        return response.whenComplete((r, e) -> {
+            if (e == null) {
+                ModelCascade.recordRequest(model, System.currentTimeMillis() - start);
             }
-            code = changeTestName(code, className, testName);
-            code = repairPackage(code, classInfo.packageDeclaration);
-            code = addTimeout(code, testTimeOut);
+        });
+    }
 
-            promptInfo.setUnitTest(code);
+    private CompletableFuture<Boolean> processRound(int num, int rounds, PromptInfo promptInfo, String testName,
+                                                    List<Path> paths, String model, CompletableFuture<String> response) {
+        return response
+                .thenApplyAsync(content -> processResponse(content, rounds, promptInfo, testName, paths), getWorkerPool())
+                .thenCompose(success -> {
+                    ModelCascade.recordRound(model, success);
+                    if (success) {
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    return startRound(num, rounds + 1, promptInfo, testName, paths);
+                });
+    }
 
-            code = repairImports(code, classInfo.imports);
-            exportTest(code, savePath);
+    /**
+     * Extract, export and compile the test in the response.
+     * @return whether the test is generated successfully
+     */
+    private boolean processResponse(String content, int rounds, PromptInfo promptInfo, String testName, List<Path> paths) {
+        Path savePath = testOutputPath.resolve(classInfo.packageDeclaration
+                        .replace(".", File.separator)
+                        .replace("package ", "")
+                        .replace(";", ""))
+                .resolve(testName + ".java");
+
+        String code = parseContent(content);
+        if (code.isEmpty()) {
+            log.info("Test for method < " + methodInfo.methodName + " > extract code failed");
+            return false;
+        }
+        code = changeTestName(code, className, testName);
+        code = repairPackage(code, classInfo.packageDeclaration);
+        code = addTimeout(code, testTimeOut);
 
-            TestCompiler compiler = new TestCompiler();
-            if (compiler.compileAndExport(savePath.toFile(),
-                    errorOutputPath.resolve(testName + "CompilationError_" + rounds + ".txt"), promptInfo)) {
+        promptInfo.setUnitTest(code);
+
+        code = repairImports(code, classInfo.imports);
+        exportTest(code, savePath);
+
+        TestCompiler compiler = new TestCompiler();
+        if (compiler.compileAndExport(savePath.toFile(),
+                errorOutputPath.resolve(testName + "CompilationError_" + rounds + ".txt"), promptInfo)) {
+            synchronized (paths) {
                 paths.add(savePath);
-                log.info("Test for method < " + methodInfo.methodName + " > generated successfully");
-                return true;
-            } else {
-                removeTestFile(savePath.toFile());
-                log.info("Test for method < " + methodInfo.methodName + " > generated failed");
             }
+            log.info("Test for method < " + methodInfo.methodName + " > generated successfully");
+            return true;
+        } else {
+            removeTestFile(savePath.toFile());
+            log.info("Test for method < " + methodInfo.methodName + " > generated failed");
         }
         return false;
     }
@@ -125,4 +255,4 @@ public class MethodRunner extends ClassRunner {
             testFile.delete();
         }
     }
-}
\ No newline at end of file
+}
@@ -1,99 +1,431 @@
 package zju.cst.aces.utils;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import okhttp3.*;
+import okio.BufferedSource;
 import zju.cst.aces.ProjectTestMojo;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 public class AskGPT extends ProjectTestMojo {
-    private static final String URL = "https://api.openai.com/v1/chat/completions";
-    private static final MediaType MEDIA_TYPE = MediaType.parse("application/json");
-    private static  OkHttpClient client;
-    private static String hostname;
-    private static String port;
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-
-    public Response askChatGPT(List<Message> messages) {
-        setProxyStr();
-        if(!hostname.equals("null") && !port.equals("-1")){
-            setClinetwithProxy();
-        }else {
-            setClinet();
-        }
-        String apiKey = Config.getRandomKey();
-        int maxTry = 5;
-        while (maxTry > 0) {
-            try {
-                Map<String, Object> payload = new HashMap<>();
-                payload.put("messages", messages);
-                payload.put("model", Config.model);
-                payload.put("temperature", Config.temperature);
-                payload.put("top_p", Config.topP);
-                payload.put("frequency_penalty", Config.frequencyPenalty);
-                payload.put("presence_penalty", Config.presencePenalty);
-                String jsonPayload = GSON.toJson(payload);
-
-                RequestBody body = RequestBody.create(MEDIA_TYPE, jsonPayload);
-                Request request = new Request.Builder()
-                        .url(URL)
-                        .post(body)
-                        .addHeader("Content-Type", "application/json")
-                        .addHeader("Authorization", "Bearer " + apiKey)
-                        .build();
-
-                Response response = client.newCall(request).execute();
-                if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
-                return response;
-
-            } catch (IOException e) {
-                System.out.println("In AskGPT.askChatGPT: " + e);
-                if (e.getMessage().contains("maximum context length is ")) {
-                    break;
-                }
-                if (e.getMessage().contains("Rate limit reached")) {
-                    try {
-                        Thread.sleep(new Random().nextInt(60) + 60);
-                    } catch (InterruptedException ie) {
-                        throw new RuntimeException("In AskGPT.askChatGPT: " + ie);
-                    }
+    // the longest text a continuation is expected to repeat from the end of the partial answer
+    private static final int MAX_OVERLAP = 200;
+    // a shorter common text is taken as a coincidence rather than a repetition
+    private static final int MIN_OVERLAP = 8;
+
+    /**
+     * Send the messages and wait for the content of the first choice, null if no response is got after retries.
+     */
+    public String askChatGPT(List<Message> messages) {
+        return askChatGPTAsync(messages).join();
+    }
+
+    /**
+     * Send the messages without blocking the caller.
+     * The future is completed with the content of the first choice, or null if no response is got after retries.
+     */
+    public CompletableFuture<String> askChatGPTAsync(List<Message> messages) {
+        return askChatGPTAsync(new ChatRequest(messages, 0));
+    }
+
+    public CompletableFuture<String> askChatGPTAsync(ChatRequest chatRequest) {
+        return chatAsync(chatRequest).thenApply(response -> response == null ? null : response.getContent());
+    }
+
+    /**
+     * Send the request without blocking the caller.
+     * The future is completed with the response, or null if no response is got after retries.
+     */
+    public CompletableFuture<ChatResponse> chatAsync(ChatRequest chatRequest) {
+        ResponseCache cache = ResponseCache.getInstance();
+        if (cache != null) {
+            ChatResponse cached = cache.get(chatRequest);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        CompletableFuture<ChatResponse> result = RequestCoalescer.execute(chatRequest,
+                () -> sendWithinBudget(chatRequest).thenCompose(response -> continueTruncated(chatRequest, response)));
+        if (cache == null) {
+            return result;
+        }
+        return result.thenApply(response -> {
+            cache.put(chatRequest, response);
+            return response;
+        });
+    }
+
+    private CompletableFuture<ChatResponse> sendWithinBudget(ChatRequest chatRequest) {
+        if (!BudgetGovernor.isEnabled()) {
+            return send(chatRequest);
+        }
+        BudgetGovernor.Reservation reservation = BudgetGovernor.reserve(chatRequest);
+        if (reservation == null) {
+            return CompletableFuture.failedFuture(new ChatException(ChatException.Kind.BUDGET_EXHAUSTED,
+                    -1, -1, "The budget of the run is exhausted for a request of priority " + chatRequest.priority));
+        }
+        // the request is kept as it is for the cache and the coalescing, only the choices sent are reduced
+        ChatRequest sent = reservation.getN() == chatRequest.n ? chatRequest : chatRequest.withChoices(reservation.getN());
+        return send(sent).whenComplete((response, e) -> BudgetGovernor.release(reservation, response));
+    }
+
+    /**
+     * Continue the choices cut off by max_tokens (finish_reason "length") instead of losing a whole round:
+     * the partial answer is sent back as the assistant message and the continuation is appended to it,
+     * up to {@link Config#maxContinuations} times. A failed continuation keeps the partial answer.
+     */
+    private CompletableFuture<ChatResponse> continueTruncated(ChatRequest chatRequest, ChatResponse response) {
+        if (response == null || chatRequest.continuation >= Config.maxContinuations) {
+            return CompletableFuture.completedFuture(response);
+        }
+        List<CompletableFuture<Void>> continuations = new ArrayList<>();
+        for (ChatResponse.Choice choice : response.choices) {
+            if (!"length".equals(choice.finishReason) || choice.content == null) {
+                continue;
+            }
+            UsageStats.recordContinuation();
+            continuations.add(chatAsync(chatRequest.continueWith(choice.content)).handle((continuation, e) -> {
+                if (continuation != null && continuation.getContent() != null) {
+                    choice.content = joinContinuation(choice.content, continuation.getContent());
+                    choice.finishReason = continuation.getFinishReason();
                 }
-                maxTry--;
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(continuations.toArray(new CompletableFuture<?>[0])).thenApply(v -> response);
+    }
+
+    /**
+     * Append the continuation to the partial answer, without the text the model repeated
+     * nor the fence of a code block it opened again.
+     */
+    static String joinContinuation(String partial, String continuation) {
+        String text = continuation;
+        if (text.startsWith("```") && StreamingCodeExtractor.isInCodeBlock(partial)) {
+            int lineEnd = text.indexOf('\n');
+            text = lineEnd < 0 ? "" : text.substring(lineEnd + 1);
+        }
+        for (int overlap = Math.min(Math.min(partial.length(), text.length()), MAX_OVERLAP); overlap >= MIN_OVERLAP; overlap--) {
+            if (partial.endsWith(text.substring(0, overlap))) {
+                return partial + text.substring(overlap);
             }
         }
-        log.debug("AskGPT: Failed to get response\n");
-        return null;
+        return partial + text;
     }
-    public static void setProxyStr(){
-        hostname=Config.proxy.split(":")[0];
-        port=Config.proxy.split(":")[1];
+
+    private CompletableFuture<ChatResponse> send(ChatRequest chatRequest) {
+        if (Config.batchMode) {
+            return BatchScheduler.getInstance().submit(chatRequest);
+        }
+        CompletableFuture<ChatResponse> call = new CompletableFuture<>();
+        new AsyncCall(chatRequest, call).send();
+        return call;
     }
 
-    public static void setClinet(){
-        //System.out.println("setClinet without proxy");
-        client=new OkHttpClient.Builder()
-                .connectTimeout(5, TimeUnit.MINUTES)
-                .writeTimeout(5, TimeUnit.MINUTES)
-                .readTimeout(5, TimeUnit.MINUTES)
-                .build();
+    /**
+     * The tries of one request. Each failure is classified by {@link ChatException}:
+     * the rate limits are waited for without counting a failure, the server and network errors
+     * are retried with the backoff of {@link RetryPolicy}, a key without quota or authorization
+     * is replaced by another key, and a request the server rejects is never retried.
+     * All tries go through the {@link CircuitBreaker} of the endpoint and the key.
+     * With {@link Config#hedging}, a try still in flight after a percentile of the observed latency is duplicated,
+     * the first answer wins and the other call is cancelled.
+     */
+    private class AsyncCall {
+        private final ChatRequest chatRequest;
+        private final LlmBackend backend;
+        private final CompletableFuture<ChatResponse> result;
+        private final int tokens;
+        private String apiKey;
+        private int failures = 0;
+        private int attempts = 0;
+        // the time of the first 429 of the request, 0 if none
+        private long rateLimitedSince = 0;
+        // the calls of the current try, two when the try is hedged
+        private final List<Call> inFlight = new ArrayList<>();
+        // the time the first call of the current try was sent
+        private volatile long tryStart;
+
+        AsyncCall(ChatRequest chatRequest, CompletableFuture<ChatResponse> result) {
+            this.chatRequest = chatRequest;
+            this.backend = LlmBackend.get();
+            this.result = result;
+            this.tokens = RateLimiter.estimateTokens(chatRequest.messages);
+            this.apiKey = KeyPool.choose(backend);
+        }
+
+        void send() {
+            if (++attempts > RetryPolicy.getMaxAttempts()) {
+                fail();
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * Send the request once the circuit and the rate limit of the key allow it, without counting an attempt.
+         */
+        private void dispatch() {
+            long wait = CircuitBreaker.get(backend.getChatUrl(), apiKey).tryAcquire();
+            if (wait > 0) {
+                sendAfter(wait);
+                return;
+            }
+            wait = RateLimiter.reserve(apiKey, tokens);
+            if (wait > 0) {
+                CompletableFuture.runAsync(this::call, CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS));
+            } else {
+                call();
+            }
+        }
+
+        private void sendAfter(long wait) {
+            CompletableFuture.runAsync(this::send, CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS));
+        }
+
+        private void call() {
+            call(apiKey, false);
+        }
+
+        /**
+         * Send the request once the concurrency limiter allows one more request in flight.
+         * @param hedge whether the call duplicates a slow call still in flight
+         */
+        private void call(String key, boolean hedge) {
+            ConcurrencyLimiter limiter = backend.getLimiter();
+            limiter.acquire(chatRequest.priority).thenRun(() -> {
+                long start = System.currentTimeMillis();
+                if (result.isDone()) {
+                    // the other call of a hedged pair already answered
+                    limiter.release(-1, 0, 0);
+                    return;
+                }
+                // the streamed code extraction follows a single choice from the start of the answer
+                boolean stream = Config.stream && chatRequest.n == 1 && chatRequest.continuation == 0;
+                Request request = backend.buildRequest(chatRequest, key, stream);
+                Call httpCall = backend.getClient().newCall(request);
+                if (!hedge) {
+                    tryStart = start;
+                    scheduleHedge(key, start);
+                }
+                synchronized (inFlight) {
+                    inFlight.add(httpCall);
+                }
+                httpCall.enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                        limiter.release(-1, System.currentTimeMillis() - start, 0);
+                        if (isLoser(call, start, hedge)) {
+                            return;
+                        }
+                        backend.record(start, System.currentTimeMillis() - start, null);
+                        handleError(key, e instanceof ChatException ? (ChatException) e : new ChatException(e));
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        long completionTokens = 0;
+                        try (ResponseBody body = response.body()) {
+                            RateLimiter.update(key, response.headers());
+                            if (!response.isSuccessful()) throw ChatException.of(response);
+                            ChatResponse chatResponse = stream ? readStream(call, body) : ChatResponse.read(body.charStream());
+                            long latency = System.currentTimeMillis() - start;
+                            completionTokens = chatResponse.getCompletionTokens();
+                            CircuitBreaker.get(backend.getChatUrl(), key).onSuccess();
+                            backend.record(start, latency, chatResponse);
+                            KeyPool.record(key, true, latency);
+                            UsageStats.record(chatResponse);
+                            if (result.complete(chatResponse)) {
+                                cancelOthers(call);
+                                if (hedge) {
+                                    backend.recordHedgeWin(System.currentTimeMillis() - tryStart);
+                                }
+                            }
+                        } catch (ChatException e) {
+                            if (!isLoser(call, start, hedge)) {
+                                backend.record(start, System.currentTimeMillis() - start, null);
+                                handleError(key, e);
+                            }
+                        } catch (IOException e) {
+                            if (!isLoser(call, start, hedge)) {
+                                backend.record(start, System.currentTimeMillis() - start, null);
+                                handleError(key, new ChatException(e));
+                            }
+                        } catch (RuntimeException e) {
+                            // a successful status with a body which can not be read, such as malformed JSON
+                            if (!isLoser(call, start, hedge)) {
+                                backend.record(start, System.currentTimeMillis() - start, null);
+                                handleError(key, ChatException.badResponse(response.code(), e));
+                            }
+                        } finally {
+                            limiter.release(response.code(), System.currentTimeMillis() - start, completionTokens);
+                        }
+                    }
+                });
+            }).exceptionally(e -> {
+                // the call was not enqueued, such as for a request which can not be built from an invalid base URL,
+                // which would fail on every try
+                limiter.release(-1, 0, 0);
+                if (!hedge) {
+                    result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Send a duplicate of the call if it has not answered by the {@link Config#hedgePercentile} latency of the backend.
+         */
+        private void scheduleHedge(String key, long start) {
+            if (!Config.hedging) {
+                return;
+            }
+            long threshold = backend.getLatencyPercentile(Config.hedgePercentile / 100.0);
+            if (threshold <= 0) {
+                // not enough latencies observed yet
+                return;
+            }
+            CompletableFuture.runAsync(() -> {
+                synchronized (inFlight) {
+                    if (result.isDone() || inFlight.size() != 1) {
+                        return;
+                    }
+                }
+                String hedgeKey = Config.hedgeOtherKey ? KeyPool.choose(backend, key) : key;
+                if (!RateLimiter.tryReserve(hedgeKey, tokens)) {
+                    // a hedge waiting for the rate limit would not answer sooner
+                    return;
+                }
+                backend.recordHedge();
+                call(hedgeKey, true);
+            }, CompletableFuture.delayedExecutor(threshold, TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Whether the call failed since it lost against the other call of a hedged pair, or whether the other
+         * call is still in flight and will answer. The failure of such a call is not retried.
+         * The time the first call of the try ran until it lost against its hedge is recorded as a latency sample
+         * of the backend, a hedge which lost was sent late and its time says nothing of the latency.
+         * @param start the time the call was sent
+         */
+        private boolean isLoser(Call call, long start, boolean hedge) {
+            synchronized (inFlight) {
+                inFlight.remove(call);
+                if (result.isDone()) {
+                    if (!hedge) {
+                        backend.recordCancelled(System.currentTimeMillis() - start);
+                    }
+                    return true;
+                }
+                return !inFlight.isEmpty();
+            }
+        }
+
+        private void cancelOthers(Call winner) {
+            List<Call> others;
+            synchronized (inFlight) {
+                inFlight.remove(winner);
+                others = new ArrayList<>(inFlight);
+                inFlight.clear();
+            }
+            for (Call other : others) {
+                other.cancel();
+            }
+        }
+
+        private void handleError(String key, ChatException e) {
+            System.out.println("In AskGPT.askChatGPTAsync: " + e.getMessage());
+            CircuitBreaker.get(backend.getChatUrl(), key).onFailure(e);
+            if (e.getKind().isEndpointFailure()) {
+                KeyPool.record(key, false, 0);
+            }
+            switch (e.getKind()) {
+                case RATE_LIMITED:
+                    // wait for the quota instead of burning the tries, on another key if one has quota left
+                    RateLimiter.penalize(key, e.getRetryAfterMillis());
+                    if (rateLimitedSince == 0) {
+                        rateLimitedSince = System.currentTimeMillis();
+                    }
+                    if (!RetryPolicy.canWaitForQuota(rateLimitedSince)) {
+                        fail();
+                        return;
+                    }
+                    apiKey = KeyPool.choose(backend);
+                    dispatch();
+                    return;
+                case QUOTA_EXHAUSTED:
+                case UNAUTHORIZED:
+                    if (Config.apiKeys.length > 1 && RetryPolicy.canRetry(++failures)) {
+                        apiKey = KeyPool.choose(backend, key);
+                        send();
+                        return;
+                    }
+                    fail();
+                    return;
+                case SERVER_ERROR:
+                case NETWORK_ERROR:
+                case BAD_RESPONSE:
+                    if (RetryPolicy.canRetry(++failures)) {
+                        apiKey = KeyPool.choose(backend, key);
+                        sendAfter(RetryPolicy.getDelay(failures, e));
+                        return;
+                    }
+                    fail();
+                    return;
+                default:
+                    fail();
+            }
+        }
+
+        private void fail() {
+            log.debug("AskGPT: Failed to get response\n");
+            result.complete(null);
+        }
     }
-    public static void setClinetwithProxy(){
-        //System.out.println("hostname:"+Config.hostName+" port:"+Config.port);
-        Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(hostname, Integer.parseInt(port)));
-        client=new OkHttpClient.Builder()
-                .connectTimeout(5, TimeUnit.MINUTES)
-                .writeTimeout(5, TimeUnit.MINUTES)
-                .readTimeout(5, TimeUnit.MINUTES)
-                .proxy(proxy)//自定义代理
-                .build();
-        //System.out.println("setClinet with proxy");
+
+    /**
+     * Read the server-sent events of a streamed response until the test code is complete.
+     * The call is cancelled as soon as the closing fence of the test arrives or the response is not a test,
+     * so the rest of the completion is neither waited for nor downloaded.
+     */
+    private static ChatResponse readStream(Call call, ResponseBody body) throws IOException {
+        StreamingCodeExtractor extractor = new StreamingCodeExtractor();
+        BufferedSource source = body.source();
+        String finishReason = null;
+        ChatResponse.Usage usage = null;
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (!line.startsWith("data:")) {
+                continue;
+            }
+            String data = line.substring("data:".length()).trim();
+            if (data.equals("[DONE]")) {
+                break;
+            }
+            ChatResponse chunk = ChatResponse.readChunk(data);
+            if (chunk.usage != null) {
+                usage = chunk.usage;
+            }
+            if (chunk.getFinishReason() != null) {
+                finishReason = chunk.getFinishReason();
+            }
+            String delta = chunk.getContent();
+            if (delta == null) {
+                continue;
+            }
+            StreamingCodeExtractor.State state = extractor.append(delta);
+            if (state != StreamingCodeExtractor.State.CONTINUE) {
+                call.cancel();
+                finishReason = state == StreamingCodeExtractor.State.COMPLETE ? "stop" : ChatResponse.ABORTED;
+                break;
+            }
+        }
+        ChatResponse response = ChatResponse.of(extractor.getContent(), finishReason);
+        response.usage = usage;
+        return response;
     }
-}
\ No newline at end of file
+}
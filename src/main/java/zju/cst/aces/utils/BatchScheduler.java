@@ -0,0 +1,292 @@
+package zju.cst.aces.utils;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import okhttp3.*;
+import zju.cst.aces.ProjectTestMojo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline batch mode: the requests are collected into a JSONL file in the OpenAI Batch API format,
+ * submitted as one batch and polled until the results are available.
+ * A batch is submitted once no new request arrived for {@link Config#batchWindow} seconds,
+ * so the first rounds of the whole project go out together, and the repair rounds as further batches,
+ * or once its first request waited for {@link Config#batchMaxWait} seconds while the requests kept coming.
+ * The requests are written in the payload of the {@link LlmBackend} for its chat completion endpoint.
+ * The input and output files are kept under tmpOutput/batch.
+ */
+public class BatchScheduler {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).create();
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/json");
+    private static final MediaType JSONL_TYPE = MediaType.parse("application/jsonl");
+    // the Batch API accepts up to 50,000 requests per batch
+    private static final int MAX_BATCH_SIZE = 50000;
+    private static final int MAX_POLL_FAILURES = 10;
+    private static volatile BatchScheduler instance;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chatunitest-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger requestId = new AtomicInteger();
+    private final AtomicInteger batchId = new AtomicInteger();
+    private Map<String, CompletableFuture<ChatResponse>> pending = new LinkedHashMap<>();
+    private Map<String, ChatRequest> pendingRequests = new LinkedHashMap<>();
+    private ScheduledFuture<?> flushTask;
+    // the time the first pending request was submitted
+    private long firstPending = 0;
+    private int submittedBatches = 0;
+    private int submittedRequests = 0;
+
+    // a line of the input file
+    private static class BatchLine {
+        String customId;
+        String method = "POST";
+        String url;
+        Map<String, Object> body;
+    }
+
+    private static class BatchCreation {
+        String inputFileId;
+        String endpoint;
+        String completionWindow = "24h";
+    }
+
+    // a file or a batch of the API, the fields used of both
+    private static class ApiObject {
+        String id;
+        String status;
+        String outputFileId;
+    }
+
+    // a line of the output file
+    private static class BatchResult {
+        String customId;
+        Output response;
+
+        static class Output {
+            JsonObject body;
+        }
+    }
+
+    public static BatchScheduler getInstance() {
+        if (instance == null) {
+            synchronized (BatchScheduler.class) {
+                if (instance == null) {
+                    instance = new BatchScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Add the request to the next batch.
+     * @return the future completed with the response, or null if the request failed in the batch
+     */
+    public synchronized CompletableFuture<ChatResponse> submit(ChatRequest chatRequest) {
+        String customId = "request-" + requestId.incrementAndGet();
+        CompletableFuture<ChatResponse> result = new CompletableFuture<>();
+        long now = System.currentTimeMillis();
+        if (pending.isEmpty()) {
+            firstPending = now;
+        }
+        pending.put(customId, result);
+        pendingRequests.put(customId, chatRequest);
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        if (pending.size() >= MAX_BATCH_SIZE) {
+            scheduler.execute(this::flush);
+        } else {
+            // after a quiet window, but a steady trickle of requests does not hold back the first one forever
+            long delay = Math.min(Config.batchWindow * 1000L, firstPending + Config.batchMaxWait * 1000L - now);
+            flushTask = scheduler.schedule(this::flush, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    private void flush() {
+        Map<String, CompletableFuture<ChatResponse>> futures;
+        Map<String, ChatRequest> requests;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            futures = pending;
+            requests = pendingRequests;
+            pending = new LinkedHashMap<>();
+            pendingRequests = new LinkedHashMap<>();
+            submittedBatches++;
+            submittedRequests += futures.size();
+        }
+        String name = "batch-" + batchId.incrementAndGet();
+        LlmBackend backend = LlmBackend.get();
+        String apiKey = KeyPool.choose(backend);
+        try {
+            Path batchDir = Paths.get(Config.tmpOutput, "batch");
+            Files.createDirectories(batchDir);
+            Path input = batchDir.resolve(name + "-input.jsonl");
+            String endpoint = HttpUrl.get(backend.getChatUrl()).encodedPath();
+            writeInput(input, requests, backend, endpoint);
+            String fileId = uploadFile(input, apiKey);
+            String id = createBatch(fileId, endpoint, apiKey);
+            ProjectTestMojo.log.info("[ChatTester] Submitted " + name + " (" + id + ") with " + futures.size() + " requests");
+            scheduler.schedule(() -> poll(id, name, apiKey, futures, 0), Config.batchPollInterval, TimeUnit.SECONDS);
+        } catch (IOException | RuntimeException e) {
+            ProjectTestMojo.log.error("[ChatTester] Submitting " + name + " failed: " + e);
+            completeAll(futures, Collections.emptyMap());
+        }
+    }
+
+    private void writeInput(Path input, Map<String, ChatRequest> requests, LlmBackend backend, String endpoint) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, ChatRequest> entry : requests.entrySet()) {
+                BatchLine line = new BatchLine();
+                line.customId = entry.getKey();
+                line.url = endpoint;
+                line.body = backend.getPayload(entry.getValue(), false);
+                writer.write(GSON.toJson(line));
+                writer.newLine();
+            }
+        }
+    }
+
+    private String uploadFile(Path input, String apiKey) throws IOException {
+        RequestBody body = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("purpose", "batch")
+                .addFormDataPart("file", input.getFileName().toString(), RequestBody.create(input.toFile(), JSONL_TYPE))
+                .build();
+        Request request = new Request.Builder()
+                .url(Config.batchUrl + "/files")
+                .post(body)
+                .addHeader("Authorization", "Bearer " + apiKey)
+                .build();
+        return execute(request).id;
+    }
+
+    private String createBatch(String fileId, String endpoint, String apiKey) throws IOException {
+        BatchCreation creation = new BatchCreation();
+        creation.inputFileId = fileId;
+        creation.endpoint = endpoint;
+        Request request = new Request.Builder()
+                .url(Config.batchUrl + "/batches")
+                .post(RequestBody.create(GSON.toJson(creation), MEDIA_TYPE))
+                .addHeader("Content-Type", "application/json")
+                .addHeader("Authorization", "Bearer " + apiKey)
+                .build();
+        return execute(request).id;
+    }
+
+    private void poll(String id, String name, String apiKey, Map<String, CompletableFuture<ChatResponse>> futures, int failures) {
+        try {
+            Request request = new Request.Builder()
+                    .url(Config.batchUrl + "/batches/" + id)
+                    .get()
+                    .addHeader("Authorization", "Bearer " + apiKey)
+                    .build();
+            ApiObject batch = execute(request);
+            String status = String.valueOf(batch.status);
+            ProjectTestMojo.log.debug("[ChatTester] " + name + " (" + id + ") status: " + status);
+            switch (status) {
+                case "completed":
+                case "failed":
+                case "expired":
+                case "cancelled":
+                    // an expired batch still returns the results of the requests completed in time,
+                    // the requests without a result are completed with null
+                    completeAll(futures, batch.outputFileId == null ? Collections.emptyMap()
+                            : download(batch.outputFileId, name, apiKey));
+                    ProjectTestMojo.log.info("[ChatTester] " + name + " (" + id + ") " + status);
+                    return;
+                default:
+                    scheduler.schedule(() -> poll(id, name, apiKey, futures, 0), Config.batchPollInterval, TimeUnit.SECONDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (failures + 1 >= MAX_POLL_FAILURES) {
+                ProjectTestMojo.log.error("[ChatTester] Polling " + name + " (" + id + ") failed: " + e);
+                completeAll(futures, Collections.emptyMap());
+                return;
+            }
+            scheduler.schedule(() -> poll(id, name, apiKey, futures, failures + 1), Config.batchPollInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Download the output file of the batch.
+     * @return the response of each request by its custom id
+     */
+    private Map<String, ChatResponse> download(String fileId, String name, String apiKey) throws IOException {
+        Request request = new Request.Builder()
+                .url(Config.batchUrl + "/files/" + fileId + "/content")
+                .get()
+                .addHeader("Authorization", "Bearer " + apiKey)
+                .build();
+        Path output = Paths.get(Config.tmpOutput, "batch", name + "-output.jsonl");
+        try (Response response = getClient().newCall(request).execute()) {
+            if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+            Files.copy(response.body().byteStream(), output, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Map<String, ChatResponse> responses = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(output, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    BatchResult result = GSON.fromJson(line, BatchResult.class);
+                    if (result.response == null || result.response.body == null) {
+                        continue;
+                    }
+                    ChatResponse chatResponse = ChatResponse.read(new StringReader(result.response.body.toString()));
+                    if (chatResponse.getContent() == null) {
+                        // an error body without choices, the request is failed
+                        continue;
+                    }
+                    UsageStats.record(chatResponse);
+                    responses.put(result.customId, chatResponse);
+                } catch (IOException | RuntimeException e) {
+                    // a malformed body, the request is failed
+                }
+            }
+        }
+        return responses;
+    }
+
+    private static void completeAll(Map<String, CompletableFuture<ChatResponse>> futures, Map<String, ChatResponse> responses) {
+        for (Map.Entry<String, CompletableFuture<ChatResponse>> entry : futures.entrySet()) {
+            entry.getValue().complete(responses.get(entry.getKey()));
+        }
+    }
+
+    private static ApiObject execute(Request request) throws IOException {
+        try (Response response = getClient().newCall(request).execute()) {
+            String body = response.body().string();
+            if (!response.isSuccessful()) throw new IOException("Unexpected code " + response + ": " + body);
+            return GSON.fromJson(body, ApiObject.class);
+        }
+    }
+
+    private static OkHttpClient getClient() {
+        return LlmBackend.get().getClient();
+    }
+
+    public synchronized String getStats() {
+        return String.format("Batch mode: batches: %d, requests: %d", submittedBatches, submittedRequests);
+    }
+}
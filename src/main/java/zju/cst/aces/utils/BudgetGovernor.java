@@ -0,0 +1,159 @@
+package zju.cst.aces.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Run-level budget of the LLM requests, in tokens ({@link Config#tokenBudget})
+ * and/or in currency ({@link Config#costBudget}, priced by {@link Config#promptPrice} and {@link Config#completionPrice}).
+ * Before a request is sent its cost is estimated from the {@link TokenCounter} count of the prompt and the average
+ * completion so far, and reserved; once the response arrives the reservation is replaced by the reported usage.
+ * A request is admitted only if it leaves the share of the budget kept for the higher priorities
+ * (see {@link ChatRequest.Priority}), so when the budget runs low the first rounds of public methods
+ * go on while the extra candidates and the repair rounds stop.
+ * The methods cut off by the budget are reported at the end of the run.
+ */
+public class BudgetGovernor {
+    // the completion tokens of a choice expected before any response
+    private static final long DEFAULT_COMPLETION_TOKENS = 1000;
+
+    private static long spentPromptTokens = 0;
+    private static long spentCompletionTokens = 0;
+    private static long choices = 0;
+    private static long reservedTokens = 0;
+    private static double reservedCost = 0;
+    private static long refused = 0;
+    private static final Set<String> exhaustedMethods = new LinkedHashSet<>();
+
+    /**
+     * The budget reserved for a request in flight.
+     */
+    public static class Reservation {
+        private final long promptTokens;
+        private final long completionTokens;
+        private final int n;
+
+        private Reservation(long promptTokens, long completionTokens, int n) {
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+            this.n = n;
+        }
+
+        /**
+         * The choices the budget allows, at most the n of the request.
+         */
+        public int getN() {
+            return n;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Config.tokenBudget > 0 || Config.costBudget > 0;
+    }
+
+    /**
+     * Reserve the budget of the request. The choices of a request with n > 1 are reduced to what the budget allows,
+     * the choices after the first one being extra candidates. The request itself is not changed,
+     * the choices allowed are those of the reservation.
+     * @return the reservation, null if the budget does not allow the request
+     */
+    public static synchronized Reservation reserve(ChatRequest chatRequest) {
+        long prompt = RateLimiter.estimateTokens(chatRequest.messages);
+        long completion = getExpectedCompletionTokens();
+        if (!fits(prompt, completion, chatRequest.priority)) {
+            refused++;
+            return null;
+        }
+        int n = chatRequest.n;
+        while (n > 1 && !fits(prompt, completion * n, ChatRequest.Priority.EXTRA_CANDIDATE)) {
+            n--;
+        }
+        reservedTokens += prompt + completion * n;
+        reservedCost += getCost(prompt, completion * n);
+        return new Reservation(prompt, completion * n, n);
+    }
+
+    /**
+     * Replace the reservation by the usage of the response.
+     * @param response the response, null if the request failed
+     */
+    public static synchronized void release(Reservation reservation, ChatResponse response) {
+        reservedTokens -= reservation.promptTokens + reservation.completionTokens;
+        reservedCost -= getCost(reservation.promptTokens, reservation.completionTokens);
+        if (response == null) {
+            return;
+        }
+        if (response.usage != null) {
+            spentPromptTokens += response.usage.promptTokens;
+            spentCompletionTokens += response.usage.completionTokens;
+        } else {
+            // a stream cancelled before its usage, count the estimate
+            spentPromptTokens += reservation.promptTokens;
+            spentCompletionTokens += reservation.completionTokens;
+        }
+        choices += Math.max(response.choices.size(), 1);
+    }
+
+    private static boolean fits(long prompt, long completion, ChatRequest.Priority priority) {
+        if (Config.tokenBudget > 0) {
+            double remaining = Config.tokenBudget - getSpentTokens() - reservedTokens - prompt - completion;
+            if (remaining < Config.tokenBudget * priority.getReserve()) {
+                return false;
+            }
+        }
+        if (Config.costBudget > 0) {
+            double remaining = Config.costBudget - getSpentCost() - reservedCost - getCost(prompt, completion);
+            if (remaining < Config.costBudget * priority.getReserve()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getExpectedCompletionTokens() {
+        return choices == 0 ? DEFAULT_COMPLETION_TOKENS : Math.max(spentCompletionTokens / choices, 1);
+    }
+
+    private static long getSpentTokens() {
+        return spentPromptTokens + spentCompletionTokens;
+    }
+
+    private static double getSpentCost() {
+        return getCost(spentPromptTokens, spentCompletionTokens);
+    }
+
+    private static double getCost(long promptTokens, long completionTokens) {
+        return (promptTokens * Config.promptPrice + completionTokens * Config.completionPrice) / 1000;
+    }
+
+    /**
+     * Whether the failure is a request refused by the budget.
+     */
+    public static boolean isExhausted(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ChatException
+                    && ((ChatException) cause).getKind() == ChatException.Kind.BUDGET_EXHAUSTED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static synchronized void addExhaustedMethod(String method) {
+        exhaustedMethods.add(method);
+    }
+
+    public static synchronized List<String> getExhaustedMethods() {
+        return new ArrayList<>(exhaustedMethods);
+    }
+
+    public static synchronized String getStats() {
+        return String.format("Budget: spent %d tokens (budget %s), cost %.4f (budget %s), refused requests: %d, "
+                        + "methods cut off by the budget: %d",
+                getSpentTokens(), Config.tokenBudget > 0 ? String.valueOf(Config.tokenBudget) : "unlimited",
+                getSpentCost(), Config.costBudget > 0 ? String.valueOf(Config.costBudget) : "unlimited",
+                refused, exhaustedMethods.size());
+    }
+}
@@ -0,0 +1,144 @@
+package zju.cst.aces.utils;
+
+import com.google.gson.Gson;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * A failed chat completion request, classified by the HTTP status and the error body.
+ */
+public class ChatException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private static final Gson GSON = new Gson();
+
+    private final Kind kind;
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public enum Kind {
+        // 429 of the rate limits, wait and retry without counting a failure
+        RATE_LIMITED(true, false),
+        // 5xx, 408 and connection failures, retry with backoff
+        SERVER_ERROR(true, true),
+        NETWORK_ERROR(true, true),
+        // the key has no quota left or is not authorized, retry with another key
+        QUOTA_EXHAUSTED(false, true),
+        UNAUTHORIZED(false, true),
+        // a successful status with a body which can not be read, retry with backoff
+        BAD_RESPONSE(true, true),
+        // the request itself is wrong, never retry
+        CONTEXT_LENGTH_EXCEEDED(false, false),
+        BAD_REQUEST(false, false),
+        // the request was not sent since the budget of the run is exhausted
+        BUDGET_EXHAUSTED(false, false);
+
+        private final boolean transientError;
+        private final boolean endpointFailure;
+
+        Kind(boolean transientError, boolean endpointFailure) {
+            this.transientError = transientError;
+            this.endpointFailure = endpointFailure;
+        }
+
+        /**
+         * Whether the same request with the same key may succeed later.
+         */
+        public boolean isTransient() {
+            return transientError;
+        }
+
+        /**
+         * Whether the error is a failure of the endpoint or the key, rather than of the request.
+         */
+        public boolean isEndpointFailure() {
+            return endpointFailure;
+        }
+    }
+
+    public ChatException(Kind kind, int statusCode, long retryAfterMillis, String message) {
+        super(message);
+        this.kind = kind;
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public ChatException(IOException cause) {
+        super(cause.toString(), cause);
+        this.kind = Kind.NETWORK_ERROR;
+        this.statusCode = -1;
+        this.retryAfterMillis = -1;
+    }
+
+    /**
+     * A response with a successful status whose body can not be read.
+     */
+    public static ChatException badResponse(int statusCode, RuntimeException cause) {
+        ChatException e = new ChatException(Kind.BAD_RESPONSE, statusCode, -1, "Bad response body: " + cause);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Classify an unsuccessful response by its status code and the type and code in its error body.
+     */
+    public static ChatException of(Response response) {
+        int code = response.code();
+        String body = "";
+        String type = "";
+        String errorCode = "";
+        try {
+            body = response.peekBody(16 * 1024).string();
+            ErrorBody error = GSON.fromJson(body, ErrorBody.class);
+            if (error != null && error.error != null) {
+                type = String.valueOf(error.error.type);
+                errorCode = String.valueOf(error.error.code);
+            }
+        } catch (IOException | RuntimeException e) {
+            // not a JSON error body, classify by the status code only
+        }
+        long retryAfter = RateLimiter.parseDuration(response.header("Retry-After"));
+
+        Kind kind;
+        if (code == 429) {
+            kind = type.equals("insufficient_quota") || errorCode.equals("insufficient_quota")
+                    ? Kind.QUOTA_EXHAUSTED : Kind.RATE_LIMITED;
+        } else if (code == 401 || code == 403) {
+            kind = Kind.UNAUTHORIZED;
+        } else if (errorCode.equals("context_length_exceeded") || body.contains("maximum context length")) {
+            kind = Kind.CONTEXT_LENGTH_EXCEEDED;
+        } else if (code >= 500 || code == 408 || code == 409) {
+            kind = Kind.SERVER_ERROR;
+        } else {
+            kind = Kind.BAD_REQUEST;
+        }
+        return new ChatException(kind, code, retryAfter, "Unexpected code " + code + " (" + kind + "): " + body);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the milliseconds of the Retry-After header, -1 if absent
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * The fields of the error body the classification uses.
+     */
+    private static class ErrorBody {
+        Error error;
+
+        static class Error {
+            String type;
+            String code;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package zju.cst.aces.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import lombok.Data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A chat completion request of one candidate test, the sampling parameters are taken from {@link Config}.
+ */
+@Data
+public class ChatRequest {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final String CONTINUE_PROMPT = "Your answer was cut off. Continue exactly where it stopped, "
+            + "without repeating anything and without starting a new code block.";
+    public List<Message> messages;
+    public String model;
+    public Double temperature;
+    public int topP;
+    public int frequencyPenalty;
+    public int presencePenalty;
+    // the number of the candidate test the request is generating, the first one if several choices are asked for
+    public int num;
+    // the choices to generate
+    public int n = 1;
+    public Priority priority = Priority.FIRST_ROUND_PUBLIC;
+    // the completion tokens allowed, null for the limit of the model
+    public Integer maxTokens;
+    // the continuations of a truncated answer before this request
+    public int continuation = 0;
+
+    /**
+     * The order in which the requests get the budget and the permits to be sent, the most important first.
+     */
+    public enum Priority {
+        // the first round of a public method
+        FIRST_ROUND_PUBLIC(0),
+        // the first round of another method
+        FIRST_ROUND(0.1),
+        // the first rounds of the candidates after the first one
+        EXTRA_CANDIDATE(0.2),
+        // the repair rounds
+        REPAIR(0.3);
+
+        private final double reserve;
+
+        Priority(double reserve) {
+            this.reserve = reserve;
+        }
+
+        /**
+         * The share of the budget the requests of this priority must leave to the higher priorities.
+         */
+        public double getReserve() {
+            return reserve;
+        }
+    }
+
+    public ChatRequest(List<Message> messages, int num) {
+        this.messages = messages;
+        this.num = num;
+        this.model = Config.model;
+        this.temperature = Config.temperature;
+        this.topP = Config.topP;
+        this.frequencyPenalty = Config.frequencyPenalty;
+        this.presencePenalty = Config.presencePenalty;
+    }
+
+    /**
+     * The fields sent to the chat completion API.
+     */
+    public Map<String, Object> getPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("messages", messages);
+        payload.put("model", model);
+        payload.put("temperature", temperature);
+        payload.put("top_p", topP);
+        payload.put("frequency_penalty", frequencyPenalty);
+        payload.put("presence_penalty", presencePenalty);
+        if (n > 1) {
+            payload.put("n", n);
+        }
+        if (maxTokens != null) {
+            payload.put("max_tokens", maxTokens);
+        }
+        return payload;
+    }
+
+    /**
+     * Set max_tokens to at most the given tokens, and to the room the prompt leaves in {@link Config#contextWindow},
+     * since a request whose prompt and max_tokens exceed the context of the model is rejected.
+     */
+    public void limitMaxTokens(int tokens) {
+        int room = Config.contextWindow > 0 ? Config.contextWindow - RateLimiter.estimateTokens(messages) : tokens;
+        maxTokens = Math.max(Math.min(tokens, room), 1);
+    }
+
+    /**
+     * The request continuing the partial answer to this request, cut off by max_tokens.
+     */
+    public ChatRequest continueWith(String partial) {
+        List<Message> continued = new ArrayList<>(messages);
+        continued.add(Message.ofAssistant(partial));
+        continued.add(Message.of(CONTINUE_PROMPT));
+        ChatRequest next = new ChatRequest(continued, num);
+        next.model = model;
+        next.temperature = temperature;
+        next.topP = topP;
+        next.frequencyPenalty = frequencyPenalty;
+        next.presencePenalty = presencePenalty;
+        next.priority = priority;
+        if (maxTokens != null) {
+            // the partial answer is part of the prompt now
+            next.limitMaxTokens(maxTokens);
+        }
+        next.continuation = continuation + 1;
+        return next;
+    }
+
+    /**
+     * A copy of this request asking for the given number of choices.
+     */
+    public ChatRequest withChoices(int n) {
+        ChatRequest copy = new ChatRequest(messages, num);
+        copy.model = model;
+        copy.temperature = temperature;
+        copy.topP = topP;
+        copy.frequencyPenalty = frequencyPenalty;
+        copy.presencePenalty = presencePenalty;
+        copy.n = n;
+        copy.priority = priority;
+        copy.maxTokens = maxTokens;
+        copy.continuation = continuation;
+        return copy;
+    }
+
+    /**
+     * SHA-256 of the payload, and of the candidate number if required.
+     * Requests with the same key are identical for the API.
+     */
+    public String getKey(boolean withNum) {
+        Map<String, Object> key = new TreeMap<>(getPayload());
+        if (withNum) {
+            key.put("num", num);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(GSON.toJson(key).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("In ChatRequest.getKey: " + e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package zju.cst.aces.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a chat completion response the plugin uses: the content and finish reason of each choice and the usage.
+ * The body is read with a {@link JsonReader}, the other fields are skipped without being materialized.
+ */
+@Data
+public class ChatResponse {
+    // the finish reason of a streamed answer cancelled since it was not a test, such as a refusal or prose
+    public static final String ABORTED = "aborted";
+
+    public List<Choice> choices = new ArrayList<>();
+    public Usage usage;
+
+    @Data
+    public static class Choice {
+        public int index;
+        public String content;
+        public String finishReason;
+    }
+
+    @Data
+    public static class Usage {
+        public long promptTokens;
+        public long completionTokens;
+        public long totalTokens;
+    }
+
+    public static ChatResponse of(String content, String finishReason) {
+        ChatResponse response = new ChatResponse();
+        Choice choice = new Choice();
+        choice.content = content;
+        choice.finishReason = finishReason;
+        response.choices.add(choice);
+        return response;
+    }
+
+    /**
+     * @return the content of the first choice, null if there is no choice
+     */
+    public String getContent() {
+        return choices.isEmpty() ? null : choices.get(0).content;
+    }
+
+    /**
+     * @return the content of the choice with the given index, null if there is no such choice
+     */
+    public String getContent(int index) {
+        for (Choice choice : choices) {
+            if (choice.index == index) {
+                return choice.content;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the completion tokens of the usage, or counted from the content of the choices when there is no usage
+     */
+    public long getCompletionTokens() {
+        if (usage != null) {
+            return usage.completionTokens;
+        }
+        long tokens = 0;
+        for (Choice choice : choices) {
+            if (choice.content != null) {
+                tokens += TokenCounter.countToken(choice.content);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the finish reason of the first choice, null if there is no choice or it is unknown
+     */
+    public String getFinishReason() {
+        return choices.isEmpty() ? null : choices.get(0).finishReason;
+    }
+
+    /**
+     * Whether a choice was cut short by the client since it was not a test.
+     */
+    public boolean isAborted() {
+        for (Choice choice : choices) {
+            if (ABORTED.equals(choice.finishReason)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a chat completion response body, the reader is consumed but not closed.
+     */
+    public static ChatResponse read(Reader reader) throws IOException {
+        return read(new JsonReader(reader), "message");
+    }
+
+    /**
+     * Read a chunk of a streamed response, the content of each choice is the delta of the chunk.
+     */
+    public static ChatResponse readChunk(String chunk) throws IOException {
+        return read(new JsonReader(new StringReader(chunk)), "delta");
+    }
+
+    private static ChatResponse read(JsonReader json, String messageField) throws IOException {
+        ChatResponse response = new ChatResponse();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "choices":
+                    readChoices(json, response, messageField);
+                    break;
+                case "usage":
+                    response.usage = readUsage(json);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return response;
+    }
+
+    private static void readChoices(JsonReader json, ChatResponse response, String messageField) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            Choice choice = new Choice();
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (name.equals("index")) {
+                    choice.index = json.nextInt();
+                } else if (name.equals("finish_reason")) {
+                    choice.finishReason = nextString(json);
+                } else if (name.equals(messageField) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        if (json.nextName().equals("content")) {
+                            choice.content = nextString(json);
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            response.choices.add(choice);
+        }
+        json.endArray();
+    }
+
+    private static Usage readUsage(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        Usage usage = new Usage();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "prompt_tokens":
+                    usage.promptTokens = json.nextLong();
+                    break;
+                case "completion_tokens":
+                    usage.completionTokens = json.nextLong();
+                    break;
+                case "total_tokens":
+                    usage.totalTokens = json.nextLong();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return usage;
+    }
+
+    private static String nextString(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        return json.nextString();
+    }
+}
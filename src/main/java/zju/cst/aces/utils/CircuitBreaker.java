@@ -0,0 +1,112 @@
+package zju.cst.aces.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker per endpoint and key. After {@link Config#circuitBreakerThreshold} consecutive failures
+ * the circuit opens and requests wait for {@link Config#circuitBreakerCooldown} seconds instead of hammering the endpoint.
+ * Then a single probe request is let through: its success closes the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private static final AtomicLong trips = new AtomicLong();
+
+    private final String name;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean probing = false;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    public static CircuitBreaker get(String endpoint, String apiKey) {
+        String name = endpoint + "#" + Integer.toHexString(apiKey.hashCode());
+        return breakers.computeIfAbsent(name, CircuitBreaker::new);
+    }
+
+    /**
+     * @return 0 if the request can be sent, otherwise the milliseconds to wait before asking again
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN) {
+            if (now < openUntil) {
+                return openUntil - now;
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (!probing) {
+            probing = true;
+            return 0;
+        }
+        // wait for the result of the probe
+        return Math.max(1000, getCooldown() / 10);
+    }
+
+    /**
+     * Whether a request would be let through now.
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case OPEN:
+                return System.currentTimeMillis() >= openUntil;
+            case HALF_OPEN:
+                return !probing;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    /**
+     * Only the failures of the endpoint or the key count,
+     * an error caused by the request itself or by the rate limits proves the endpoint is up.
+     */
+    public synchronized void onFailure(ChatException e) {
+        if (!e.getKind().isEndpointFailure()) {
+            onSuccess();
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= Config.circuitBreakerThreshold) {
+            if (state != State.OPEN) {
+                trips.incrementAndGet();
+            }
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + getCooldown();
+            probing = false;
+        }
+    }
+
+    private long getCooldown() {
+        return Config.circuitBreakerCooldown * 1000L;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public static String getStats() {
+        long open = breakers.values().stream().filter(b -> b.getState() != State.CLOSED).count();
+        return String.format("Circuit breakers: %d, opened: %d times, not closed now: %d", breakers.size(), trips.get(), open);
+    }
+}
@@ -1,5 +1,6 @@
 package zju.cst.aces.utils;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -17,6 +18,13 @@ public class ClassInfo {
     public List<String> constructors;
     public List<String> getterSetters;
     public Map<String, Set<String>> constructorDeps;
+    // the tokens of the pieces of the prompt, counted at parse time for the prompt packer
+    public int classSignatureTokens;
+    public int importTokens;
+    public List<Integer> fieldTokens;
+    public List<Integer> constructorTokens;
+    public List<Integer> getterSetterTokens;
+    public List<Integer> briefMethodTokens;
 
     public ClassInfo(String className, String packageDeclaration, String classSignature, List<String> imports,
                      List<String> fields, List<String> superClasses, Map<String, String> methodSignatures,
@@ -35,4 +43,30 @@ public class ClassInfo {
         this.getterSetters = getterSetters;
         this.constructorDeps = constructorDeps;
     }
+
+    /**
+     * Count the tokens of the pieces of the prompt, a no-op if they are counted already.
+     * The info parsed by a previous version has no counts, they are counted when the info is used.
+     */
+    public ClassInfo countTokens() {
+        if (fieldTokens != null && briefMethodTokens != null) {
+            return this;
+        }
+        classSignatureTokens = TokenCounter.countTokens(packageDeclaration, classSignature);
+        importTokens = TokenCounter.countTokens(imports.toArray(new String[0])) + imports.size();
+        constructorTokens = countTokens(constructors);
+        getterSetterTokens = countTokens(getterSetters);
+        fieldTokens = countTokens(fields);
+        briefMethodTokens = countTokens(briefMethods);
+        return this;
+    }
+
+    private static List<Integer> countTokens(List<String> lines) {
+        List<Integer> tokens = new ArrayList<>();
+        for (String line : lines) {
+            // the line break joining the lines
+            tokens.add(TokenCounter.countToken(line) + 1);
+        }
+        return tokens;
+    }
 }
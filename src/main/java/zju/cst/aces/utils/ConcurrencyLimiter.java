@@ -0,0 +1,145 @@
+package zju.cst.aces.utils;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adaptive limit of the LLM requests in flight (additive increase / multiplicative decrease).
+ * The limit grows by about one per limit-many successful requests, and is halved on a 429, a 5xx response
+ * or when the latency per completion token grows well above its baseline. The latency of a completion
+ * depends mostly on its length, so the latency of a whole response is not a congestion signal by itself.
+ * Requests over the limit wait in a queue ordered by their {@link ChatRequest.Priority}, without holding a thread.
+ * Each {@link LlmBackend} has its own limiter.
+ */
+public class ConcurrencyLimiter {
+    // a request is considered congested when it is slower per token than this factor of the baseline
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // the latency per token of a shorter completion is dominated by the time to the first token
+    private static final long MIN_SIGNAL_TOKENS = 100;
+    private static final double BACKOFF_RATIO = 0.5;
+
+    private final int maxLimit;
+    private final Queue<Waiter> waiting = new PriorityQueue<>();
+    private long waiterCount = 0;
+    private double limit = -1;
+    private int inFlight = 0;
+    // the milliseconds per completion token of the successful responses
+    private double baselineLatency = -1;
+    private long lastDecrease = 0;
+    private int decreases = 0;
+    private int maxInFlight = 0;
+
+    public ConcurrencyLimiter(int maxLimit) {
+        this.maxLimit = Math.max(maxLimit, 1);
+    }
+
+    private int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return a future completed when the request can be sent
+     */
+    public synchronized CompletableFuture<Void> acquire(ChatRequest.Priority priority) {
+        if (limit < 0) {
+            // start from a tenth of the maximum and let the successes find the quota
+            limit = Math.max(1, getMaxLimit() / 10.0);
+        }
+        if (inFlight < (int) limit) {
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+            return CompletableFuture.completedFuture(null);
+        }
+        Waiter waiter = new Waiter(priority, waiterCount++);
+        waiting.add(waiter);
+        return waiter.permit;
+    }
+
+    /**
+     * Release the permit of a request and adjust the limit by its outcome.
+     * @param code the HTTP status code, -1 if the request failed without a response
+     * @param latency the milliseconds the request took
+     * @param completionTokens the completion tokens of the response, 0 if unknown
+     */
+    public void release(int code, long latency, long completionTokens) {
+        Queue<CompletableFuture<Void>> ready = new ArrayDeque<>();
+        synchronized (this) {
+            inFlight--;
+            long start = System.currentTimeMillis() - latency;
+            if (code == 429 || code >= 500) {
+                decrease(start);
+            } else if (code >= 200 && code < 300) {
+                boolean congested = false;
+                if (completionTokens >= MIN_SIGNAL_TOKENS) {
+                    double perToken = (double) latency / completionTokens;
+                    congested = baselineLatency > 0 && perToken > baselineLatency * LATENCY_TOLERANCE && latency > 1000;
+                    if (baselineLatency < 0) {
+                        baselineLatency = perToken;
+                    } else {
+                        // follow the faster responses quickly and the slower ones slowly
+                        baselineLatency += (perToken - baselineLatency) * (perToken < baselineLatency ? 0.1 : 0.01);
+                    }
+                }
+                if (congested) {
+                    decrease(start);
+                } else {
+                    limit = Math.min(getMaxLimit(), limit + 1 / limit);
+                }
+            }
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight++;
+                ready.add(waiting.poll().permit);
+            }
+            maxInFlight = Math.max(maxInFlight, inFlight);
+        }
+        // complete outside the lock, the callbacks send the requests
+        for (CompletableFuture<Void> permit : ready) {
+            permit.complete(null);
+        }
+    }
+
+    /**
+     * @param start the time the request signalling the congestion was sent
+     */
+    private void decrease(long start) {
+        // the requests already in flight at the last decrease were sent at the old limit,
+        // their failures belong to the same congestion signal
+        if (start < lastDecrease) {
+            return;
+        }
+        lastDecrease = System.currentTimeMillis();
+        decreases++;
+        limit = Math.max(1, limit * BACKOFF_RATIO);
+    }
+
+    public synchronized int getLimit() {
+        return (int) Math.max(limit, 1);
+    }
+
+    public synchronized String getStats() {
+        return String.format("Concurrency limit: %d (max %d), max requests in flight: %d, decreases: %d, queued now: %d",
+                getLimit(), getMaxLimit(), maxInFlight, decreases, waiting.size());
+    }
+
+    /**
+     * A request waiting for a permit, the higher priorities first and then in arrival order.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        private final CompletableFuture<Void> permit = new CompletableFuture<>();
+        private final ChatRequest.Priority priority;
+        private final long order;
+
+        Waiter(ChatRequest.Priority priority, long order) {
+            this.priority = priority;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int compare = priority.compareTo(other.priority);
+            return compare != 0 ? compare : Long.compare(order, other.order);
+        }
+    }
+}
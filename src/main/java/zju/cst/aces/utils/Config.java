@@ -5,7 +5,6 @@ import org.apache.maven.project.MavenProject;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 
 import java.nio.file.Path;
-import java.util.Random;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Config {
@@ -32,6 +31,44 @@ public class Config {
     public static int presencePenalty;
     public static String[] apiKeys;
     public static String proxy;
+    public static int maxIdleConnections;
+    public static int keepAliveSeconds;
+    public static boolean stream;
+    public static int requestsPerMinute;
+    public static int tokensPerMinute;
+    public static String tmpOutput;
+    public static boolean enableCache;
+    public static int cacheSize;
+    public static boolean coalesceRequests;
+    public static boolean batchMode;
+    public static int batchWindow;
+    public static int batchPollInterval;
+    public static int batchMaxWait;
+    public static String batchUrl;
+    public static int maxRetries;
+    public static int retryBaseDelay;
+    public static int circuitBreakerThreshold;
+    public static int circuitBreakerCooldown;
+    public static boolean multipleChoices;
+    public static String backend;
+    public static String baseUrl;
+    public static int backendConcurrency;
+    public static int requestTimeout;
+    public static long tokenBudget;
+    public static double costBudget;
+    public static double promptPrice;
+    public static double completionPrice;
+    public static boolean hedging;
+    public static int hedgePercentile;
+    public static boolean hedgeOtherKey;
+    public static int maxResponseTokens;
+    public static int contextWindow;
+    public static int maxContinuations;
+    public static String[] cascadeModels;
+    public static int escalateAfterRounds;
+    public static String[] escalateOnErrors;
+    public static int escalateDependencies;
+    public static int parseThreads;
 
     public static Path classMapPath;
 
@@ -123,16 +160,159 @@ public class Config {
 
     public static void setProxy(String proxy){Config.proxy=proxy;}
 
-    public static void setClassMapPath(Path classMapPath) {
-        Config.classMapPath = classMapPath;
+    public static void setMaxIdleConnections(int maxIdleConnections) {
+        Config.maxIdleConnections = maxIdleConnections;
     }
 
-    public static String getRandomKey() {
-        Random rand = new Random();
-        if (apiKeys.length == 0) {
-            throw new RuntimeException("apiKeys is null!");
-        }
-        String apiKey = apiKeys[rand.nextInt(apiKeys.length)];
-        return apiKey;
+    public static void setKeepAliveSeconds(int keepAliveSeconds) {
+        Config.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public static void setStream(boolean stream) {
+        Config.stream = stream;
+    }
+
+    public static void setRequestsPerMinute(int requestsPerMinute) {
+        Config.requestsPerMinute = requestsPerMinute;
+    }
+
+    public static void setTokensPerMinute(int tokensPerMinute) {
+        Config.tokensPerMinute = tokensPerMinute;
+    }
+
+    public static void setTmpOutput(String tmpOutput) {
+        Config.tmpOutput = tmpOutput;
+    }
+
+    public static void setEnableCache(boolean enableCache) {
+        Config.enableCache = enableCache;
+    }
+
+    public static void setCacheSize(int cacheSize) {
+        Config.cacheSize = cacheSize;
+    }
+
+    public static void setCoalesceRequests(boolean coalesceRequests) {
+        Config.coalesceRequests = coalesceRequests;
+    }
+
+    public static void setBatchMode(boolean batchMode) {
+        Config.batchMode = batchMode;
+    }
+
+    public static void setBatchWindow(int batchWindow) {
+        Config.batchWindow = batchWindow;
+    }
+
+    public static void setBatchMaxWait(int batchMaxWait) {
+        Config.batchMaxWait = batchMaxWait;
+    }
+
+    public static void setBatchPollInterval(int batchPollInterval) {
+        Config.batchPollInterval = batchPollInterval;
+    }
+
+    public static void setBatchUrl(String batchUrl) {
+        Config.batchUrl = batchUrl;
+    }
+
+    public static void setMaxRetries(int maxRetries) {
+        Config.maxRetries = maxRetries;
+    }
+
+    public static void setRetryBaseDelay(int retryBaseDelay) {
+        Config.retryBaseDelay = retryBaseDelay;
+    }
+
+    public static void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        Config.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public static void setCircuitBreakerCooldown(int circuitBreakerCooldown) {
+        Config.circuitBreakerCooldown = circuitBreakerCooldown;
+    }
+
+    public static void setMultipleChoices(boolean multipleChoices) {
+        Config.multipleChoices = multipleChoices;
+    }
+
+    public static void setBackend(String backend) {
+        Config.backend = backend;
+    }
+
+    public static void setBaseUrl(String baseUrl) {
+        Config.baseUrl = baseUrl;
+    }
+
+    public static void setBackendConcurrency(int backendConcurrency) {
+        Config.backendConcurrency = backendConcurrency;
+    }
+
+    public static void setRequestTimeout(int requestTimeout) {
+        Config.requestTimeout = requestTimeout;
+    }
+
+    public static void setTokenBudget(long tokenBudget) {
+        Config.tokenBudget = tokenBudget;
+    }
+
+    public static void setCostBudget(double costBudget) {
+        Config.costBudget = costBudget;
+    }
+
+    public static void setPromptPrice(double promptPrice) {
+        Config.promptPrice = promptPrice;
+    }
+
+    public static void setCompletionPrice(double completionPrice) {
+        Config.completionPrice = completionPrice;
+    }
+
+    public static void setHedging(boolean hedging) {
+        Config.hedging = hedging;
+    }
+
+    public static void setHedgePercentile(int hedgePercentile) {
+        Config.hedgePercentile = hedgePercentile;
+    }
+
+    public static void setHedgeOtherKey(boolean hedgeOtherKey) {
+        Config.hedgeOtherKey = hedgeOtherKey;
+    }
+
+    public static void setMaxResponseTokens(int maxResponseTokens) {
+        Config.maxResponseTokens = maxResponseTokens;
+    }
+
+    public static void setContextWindow(int contextWindow) {
+        Config.contextWindow = contextWindow;
+    }
+
+    public static void setMaxContinuations(int maxContinuations) {
+        Config.maxContinuations = maxContinuations;
+    }
+
+    public static void setCascadeModels(String[] cascadeModels) {
+        Config.cascadeModels = cascadeModels;
+    }
+
+    public static void setEscalateAfterRounds(int escalateAfterRounds) {
+        Config.escalateAfterRounds = escalateAfterRounds;
+    }
+
+    public static void setEscalateOnErrors(String[] escalateOnErrors) {
+        Config.escalateOnErrors = escalateOnErrors;
+    }
+
+    public static void setEscalateDependencies(int escalateDependencies) {
+        Config.escalateDependencies = escalateDependencies;
+    }
+
+    public static void setParseThreads(int parseThreads) {
+        Config.parseThreads = parseThreads;
+    }
+
+    public static void setClassMapPath(Path classMapPath) {
+        Config.classMapPath = classMapPath;
     }
 }
@@ -1,9 +1,12 @@
 package zju.cst.aces.utils;
 
+import com.knuddels.jtokkit.api.Encoding;
 import zju.cst.aces.parser.ErrorParser;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author volunze
@@ -13,22 +16,140 @@ import java.util.List;
  * @version 1.0
  */
 public class ErrorProcesser {
+    private static final String OMITTED = "\n...\n";
+    // the share of the allowed tokens kept before the first error, the end of what led to it
+    private static final double LEAD_SHARE = 0.15;
+    // the share of the other allowed tokens kept from the first error on, the rest is kept from the end
+    private static final double HEAD_SHARE = 0.75;
+    // the characters per token assumed for the windows encoded, widened when a window holds too few tokens
+    private static final int WINDOW_CHARS_PER_TOKEN = 4;
+    private static final int WINDOW_MARGIN = 16;
+    // a compiler error at a position of a file, an error or exception, or a failed test
+    private static final Pattern FIRST_ERROR = Pattern.compile(
+            "\\.java:\\[\\d+,\\d+\\]|ERROR|[Ee]rror:|<<< FAILURE!|Exception\\b|Error\\b");
+
     public static String processErrorMessage(List<String> msg, int allowedTokens) throws IOException {
         if(allowedTokens<=0)
             return "";
         ErrorParser errorParser = new ErrorParser();
         TestMessage testMessage = errorParser.loadMessage(msg);
-        TokenCounter tokenCounter = new TokenCounter();
         List<String> errors = testMessage.getErrorMessage();
         String errorMessage = String.join(" ",errors);
-        while(tokenCounter.countToken(errorMessage) > allowedTokens){
-            if(errorMessage.length()>50){
-                errorMessage=errorMessage.substring(0,errorMessage.length()-50);
-            }else{
-                break;
+        return truncate(errorMessage, allowedTokens);
+    }
+
+    /**
+     * Cut the text to the allowed tokens at exact token boundaries. Only windows of the text are encoded,
+     * so the encoding cost does not grow with the length of the log.
+     * The window is centered on the line of the first error: a little of the text before it, the text from it on,
+     * and the tail of the text (e.g. the summary of the failed tests) are kept, the rest is replaced by "...".
+     */
+    public static String truncate(String text, int allowedTokens) {
+        // a token covers at least one character
+        if (text.length() <= allowedTokens) {
+            return text;
+        }
+        Encoding encoding = TokenCounter.getEncoding(Config.model);
+        if (encodeWindow(encoding, text, allowedTokens, true).size() <= allowedTokens) {
+            // the window is the whole text
+            return text;
+        }
+        int errorStart = getFirstErrorLine(text);
+        String before = text.substring(0, errorStart);
+        String after = text.substring(errorStart);
+        int available = allowedTokens - encoding.countTokens(OMITTED) * (errorStart > 0 ? 2 : 1);
+        if (available <= 0) {
+            String cut = getPrefix(after, encoding.decode(encodeWindow(encoding, after, allowedTokens, true)));
+            while (cut.length() > 0 && encoding.countTokens(cut) > allowedTokens) {
+                cut = cut.substring(0, cut.length() - 1);
+            }
+            return cut;
+        }
+        int leadTokens = (int) (available * LEAD_SHARE);
+        List<Integer> lead = encodeWindow(encoding, before, leadTokens, false);
+        leadTokens = Math.min(leadTokens, lead.size());
+        int headTokens = (int) ((available - leadTokens) * HEAD_SHARE);
+        int tailTokens = available - leadTokens - headTokens;
+        List<Integer> head = encodeWindow(encoding, after, headTokens + tailTokens, true);
+        // a window holding at most the tokens asked for is the whole text
+        boolean wholeAfter = head.size() <= headTokens + tailTokens;
+        List<Integer> tail = wholeAfter ? head : encodeWindow(encoding, after, tailTokens, false);
+        while (true) {
+            String result = getSuffix(before, encoding.decode(lead.subList(lead.size() - leadTokens, lead.size())));
+            if (leadTokens < lead.size()) {
+                result = OMITTED.substring(1) + result;
+            }
+            if (wholeAfter) {
+                result += after;
+            } else {
+                result += getPrefix(after, encoding.decode(head.subList(0, Math.min(headTokens, head.size()))))
+                        + OMITTED
+                        + getSuffix(after, encoding.decode(tail.subList(tail.size() - tailTokens, tail.size())));
+            }
+            // the tokens may merge across the joins
+            int excess = encoding.countTokens(result) - allowedTokens;
+            if (excess <= 0 || leadTokens + headTokens + tailTokens == 0) {
+                return result;
             }
+            if (wholeAfter) {
+                // the text from the error on is cut after all
+                wholeAfter = false;
+                tail = encodeWindow(encoding, after, tailTokens, false);
+                continue;
+            }
+            int fromLead = Math.min(excess, leadTokens);
+            leadTokens -= fromLead;
+            int fromHead = Math.min(excess - fromLead, headTokens);
+            headTokens -= fromHead;
+            tailTokens -= Math.min(excess - fromLead - fromHead, tailTokens);
+        }
+    }
+
+    /**
+     * @return the start of the line of the first error in the text, 0 if no error is recognized
+     */
+    static int getFirstErrorLine(String text) {
+        Matcher matcher = FIRST_ERROR.matcher(text);
+        if (!matcher.find()) {
+            return 0;
+        }
+        return text.lastIndexOf('\n', matcher.start()) + 1;
+    }
+
+    /**
+     * Encode a window at the start or the end of the text, widened until it holds more than the tokens needed
+     * and a margin for the tokens at its cut end, which may differ from the encoding of the whole text.
+     * @return the tokens of the window, of the whole text if it is shorter
+     */
+    private static List<Integer> encodeWindow(Encoding encoding, String text, int tokens, boolean atStart) {
+        long chars = (long) (tokens + WINDOW_MARGIN) * WINDOW_CHARS_PER_TOKEN;
+        while (true) {
+            int size = (int) Math.min(chars, text.length());
+            List<Integer> encoded = encoding.encode(atStart ? text.substring(0, size) : text.substring(text.length() - size));
+            if (size == text.length() || encoded.size() > tokens + WINDOW_MARGIN) {
+                return encoded;
+            }
+            chars *= 2;
+        }
+    }
+
+    /**
+     * The decoded tokens without the characters a token boundary split, such as half of a multi-byte character.
+     */
+    private static String getPrefix(String text, String decoded) {
+        int length = decoded.length();
+        while (length > 0 && !text.startsWith(decoded.substring(0, length))) {
+            length--;
+        }
+        return decoded.substring(0, length);
+    }
+
+    private static String getSuffix(String text, String decoded) {
+        int begin = 0;
+        while (begin < decoded.length() && !text.endsWith(decoded.substring(begin))) {
+            begin++;
         }
-        return errorMessage;
+        return decoded.substring(begin);
     }
 
 }
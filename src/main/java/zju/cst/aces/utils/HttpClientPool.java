@@ -0,0 +1,99 @@
+package zju.cst.aces.utils;
+
+import okhttp3.*;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the single OkHttpClient shared by all requests of a run.
+ * The client (and thus its connection pool and dispatcher) is built once from {@link Config}
+ * and reused by every thread, so connections to the API are kept alive between calls.
+ */
+public class HttpClientPool {
+    private static volatile OkHttpClient client;
+    private static final AtomicLong callCount = new AtomicLong();
+    private static final AtomicLong connectionsAcquired = new AtomicLong();
+    private static final AtomicLong connectionsOpened = new AtomicLong();
+
+    public static OkHttpClient getClient() {
+        if (client == null) {
+            synchronized (HttpClientPool.class) {
+                if (client == null) {
+                    client = buildClient();
+                }
+            }
+        }
+        return client;
+    }
+
+    private static OkHttpClient buildClient() {
+        int maxRequests = Math.max(Config.maxThreads, 1);
+        int poolSize = Config.maxIdleConnections > 0 ? Config.maxIdleConnections : maxRequests;
+        // Bounds the asynchronous requests in flight, further calls are queued by the dispatcher
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequests);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(5, TimeUnit.MINUTES)
+                .writeTimeout(5, TimeUnit.MINUTES)
+                .readTimeout(5, TimeUnit.MINUTES)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(poolSize, Config.keepAliveSeconds, TimeUnit.SECONDS))
+                .dispatcher(dispatcher)
+                .retryOnConnectionFailure(true)
+                .eventListener(new ReuseListener());
+
+        Proxy proxy = getProxy();
+        if (proxy != null) {
+            builder.proxy(proxy);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parse {@link Config#proxy} ("hostname:port"), "null:-1" means no proxy.
+     */
+    private static Proxy getProxy() {
+        if (Config.proxy == null || !Config.proxy.contains(":")) {
+            return null;
+        }
+        String hostname = Config.proxy.split(":")[0];
+        String port = Config.proxy.split(":")[1];
+        if (hostname.equals("null") || port.equals("-1")) {
+            return null;
+        }
+        return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(hostname, Integer.parseInt(port)));
+    }
+
+    public static String getStats() {
+        long acquired = connectionsAcquired.get();
+        long opened = connectionsOpened.get();
+        return String.format("HTTP calls: %d, connections acquired: %d, opened: %d, reused: %d",
+                callCount.get(), acquired, opened, Math.max(acquired - opened, 0));
+    }
+
+    /**
+     * Counts how many calls were served by an already opened (pooled) connection.
+     */
+    private static class ReuseListener extends EventListener {
+        @Override
+        public void callStart(Call call) {
+            callCount.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionsAcquired.incrementAndGet();
+        }
+    }
+}
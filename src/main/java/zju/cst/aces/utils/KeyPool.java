@@ -0,0 +1,146 @@
+package zju.cst.aces.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Routes each request to one of the configured {@link Config#apiKeys} by their observed performance.
+ * Two healthy keys are drawn at random and the one with the lower score wins (power of two choices),
+ * the score being the recent p90 latency of the key weighted by its error rate and by the share of its quota left
+ * (see {@link RateLimiter#getRemaining(String)}).
+ * A key is unhealthy while its {@link CircuitBreaker} is open, while it is held after a 429,
+ * or for {@link #EJECTION_MILLIS} after its recent error rate exceeds {@link #EJECTION_ERROR_RATE}.
+ */
+public class KeyPool {
+    private static final int LATENCY_SAMPLES = 64;
+    private static final double ERROR_DECAY = 0.9;
+    private static final double EJECTION_ERROR_RATE = 0.5;
+    private static final long EJECTION_MILLIS = 30_000;
+    // the latency of a key without any response yet, so that new keys get tried
+    private static final long UNKNOWN_LATENCY = 1;
+    private static final Map<String, KeyStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @return the key for the next request to the backend
+     */
+    public static String choose(LlmBackend backend) {
+        return choose(backend, null);
+    }
+
+    /**
+     * @param exclude a key not to choose if another one is configured, e.g. the key which just failed
+     * @return the key for the next request to the backend
+     */
+    public static String choose(LlmBackend backend, String exclude) {
+        String[] keys = Config.apiKeys;
+        if (keys == null || keys.length == 0) {
+            throw new RuntimeException("apiKeys is null!");
+        }
+        if (keys.length == 1) {
+            return keys[0];
+        }
+        long now = System.currentTimeMillis();
+        List<String> healthy = new ArrayList<>();
+        for (String key : keys) {
+            if (!key.equals(exclude) && isHealthy(backend, key, now)) {
+                healthy.add(key);
+            }
+        }
+        if (healthy.isEmpty()) {
+            // all keys are unhealthy, the retries and the breakers wait for the one chosen at random
+            List<String> others = new ArrayList<>(Arrays.asList(keys));
+            others.remove(exclude);
+            return others.get(ThreadLocalRandom.current().nextInt(others.size()));
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(healthy.size());
+        int second = random.nextInt(healthy.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        String a = healthy.get(first);
+        String b = healthy.get(second);
+        return getScore(a) <= getScore(b) ? a : b;
+    }
+
+    private static boolean isHealthy(LlmBackend backend, String key, long now) {
+        return getStats(key).ejectedUntil <= now
+                && CircuitBreaker.get(backend.getChatUrl(), key).isAvailable()
+                && RateLimiter.getRemaining(key) >= 0;
+    }
+
+    private static double getScore(String key) {
+        KeyStats keyStats = getStats(key);
+        double remaining = Math.max(RateLimiter.getRemaining(key), 0.05);
+        synchronized (keyStats) {
+            return keyStats.getPercentile(0.9) * (1 + 4 * keyStats.errorRate) / remaining;
+        }
+    }
+
+    /**
+     * Record the outcome of a request sent with the key.
+     * @param latency the milliseconds of the request, for a successful one
+     */
+    public static void record(String key, boolean success, long latency) {
+        KeyStats keyStats = getStats(key);
+        synchronized (keyStats) {
+            keyStats.requests++;
+            keyStats.errorRate = keyStats.errorRate * ERROR_DECAY + (success ? 0 : 1 - ERROR_DECAY);
+            if (success) {
+                keyStats.latencies[keyStats.samples++ % LATENCY_SAMPLES] = latency;
+            } else {
+                keyStats.errors++;
+                if (keyStats.errorRate > EJECTION_ERROR_RATE && keyStats.requests >= 5) {
+                    keyStats.ejectedUntil = System.currentTimeMillis() + EJECTION_MILLIS;
+                    keyStats.ejections++;
+                    // start again from a clean slate after the ejection
+                    keyStats.errorRate = 0;
+                }
+            }
+        }
+    }
+
+    private static KeyStats getStats(String key) {
+        return stats.computeIfAbsent(key, k -> new KeyStats());
+    }
+
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder("Key pool:");
+        String[] keys = Config.apiKeys == null ? new String[0] : Config.apiKeys;
+        for (int i = 0; i < keys.length; i++) {
+            KeyStats keyStats = getStats(keys[i]);
+            synchronized (keyStats) {
+                sb.append(String.format(" [key %d: requests: %d, errors: %d, p90: %dms, ejections: %d]",
+                        i + 1, keyStats.requests, keyStats.errors, keyStats.getPercentile(0.9), keyStats.ejections));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class KeyStats {
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int samples = 0;
+        private long requests = 0;
+        private long errors = 0;
+        private long ejections = 0;
+        private double errorRate = 0;
+        private long ejectedUntil = 0;
+
+        long getPercentile(double percentile) {
+            int size = Math.min(samples, LATENCY_SAMPLES);
+            if (size == 0) {
+                return UNKNOWN_LATENCY;
+            }
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+        }
+    }
+}
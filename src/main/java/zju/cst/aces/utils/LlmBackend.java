@@ -0,0 +1,306 @@
+package zju.cst.aces.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import okhttp3.*;
+
+import java.net.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server speaking the chat completion protocol, selected by {@link Config#backend}.
+ * A backend owns its HTTP client (with its own timeouts and dispatcher, sharing the connection pool of
+ * {@link HttpClientPool}), its concurrency limiter, and the dialect of the payload it accepts.
+ * The built-in backends are "openai" and "local" (an OpenAI-compatible inference server such as llama.cpp or vLLM),
+ * further backends can be plugged in as a {@link ServiceLoader} service of this class on the plugin classpath.
+ */
+public abstract class LlmBackend {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/json");
+    // the latencies kept for the percentiles of the statistics
+    private static final int LATENCY_SAMPLES = 1024;
+    // the latencies observed before the percentiles are used for hedging
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final Map<String, LlmBackend> backends = new HashMap<>();
+
+    private volatile OkHttpClient client;
+    private volatile ConcurrencyLimiter limiter;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private long samples = 0;
+    private long requests = 0;
+    private long failures = 0;
+    private long completionTokens = 0;
+    private long totalLatency = 0;
+    private long firstRequest = 0;
+    private long lastResponse = 0;
+    private long hedges = 0;
+    private long hedgeWins = 0;
+    private long savedMillis = 0;
+
+    /**
+     * The name the backend is selected by.
+     */
+    public abstract String getName();
+
+    /**
+     * The base URL used when {@link Config#baseUrl} is not set.
+     */
+    protected abstract String getDefaultBaseUrl();
+
+    /**
+     * The payload of the request in the dialect of the backend.
+     */
+    protected abstract Map<String, Object> getPayload(ChatRequest chatRequest, boolean stream);
+
+    /**
+     * Whether the backend generates several choices in one request (the n parameter).
+     */
+    public boolean supportsMultipleChoices() {
+        return true;
+    }
+
+    /**
+     * Adjust the HTTP client of the backend.
+     */
+    protected void configure(OkHttpClient.Builder builder) {
+    }
+
+    /**
+     * @return the backend selected by {@link Config#backend}
+     */
+    public static LlmBackend get() {
+        return get(Config.backend);
+    }
+
+    public static synchronized LlmBackend get(String name) {
+        String key = name == null || name.isEmpty() ? "openai" : name.toLowerCase();
+        LlmBackend backend = backends.get(key);
+        if (backend == null) {
+            backend = create(key);
+            backends.put(key, backend);
+        }
+        return backend;
+    }
+
+    private static LlmBackend create(String name) {
+        switch (name) {
+            case "openai":
+                return new OpenAiBackend();
+            case "local":
+                return new LocalBackend();
+            default:
+                for (LlmBackend backend : ServiceLoader.load(LlmBackend.class, LlmBackend.class.getClassLoader())) {
+                    if (backend.getName().equalsIgnoreCase(name)) {
+                        return backend;
+                    }
+                }
+                throw new RuntimeException("In LlmBackend.get: unknown backend " + name);
+        }
+    }
+
+    public String getBaseUrl() {
+        String url = Config.baseUrl == null || Config.baseUrl.isEmpty() ? getDefaultBaseUrl() : Config.baseUrl;
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public String getChatUrl() {
+        return getBaseUrl() + "/chat/completions";
+    }
+
+    public int getMaxConcurrency() {
+        return Config.backendConcurrency > 0 ? Config.backendConcurrency : Math.max(Config.maxThreads, 1);
+    }
+
+    public Request buildRequest(ChatRequest chatRequest, String apiKey, boolean stream) {
+        RequestBody body = RequestBody.create(GSON.toJson(getPayload(chatRequest, stream)), MEDIA_TYPE);
+        Request.Builder builder = new Request.Builder()
+                .url(getChatUrl())
+                .post(body)
+                .addHeader("Content-Type", "application/json");
+        if (apiKey != null && !apiKey.isEmpty()) {
+            builder.addHeader("Authorization", "Bearer " + apiKey);
+        }
+        return builder.build();
+    }
+
+    public OkHttpClient getClient() {
+        if (client == null) {
+            synchronized (this) {
+                if (client == null) {
+                    Dispatcher dispatcher = new Dispatcher();
+                    dispatcher.setMaxRequests(getMaxConcurrency());
+                    dispatcher.setMaxRequestsPerHost(getMaxConcurrency());
+                    OkHttpClient.Builder builder = HttpClientPool.getClient().newBuilder()
+                            .connectTimeout(Config.requestTimeout, TimeUnit.SECONDS)
+                            .writeTimeout(Config.requestTimeout, TimeUnit.SECONDS)
+                            .readTimeout(Config.requestTimeout, TimeUnit.SECONDS)
+                            .dispatcher(dispatcher);
+                    configure(builder);
+                    client = builder.build();
+                }
+            }
+        }
+        return client;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        if (limiter == null) {
+            synchronized (this) {
+                if (limiter == null) {
+                    limiter = new ConcurrencyLimiter(getMaxConcurrency());
+                }
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Record a request sent to the backend.
+     * @param response the response, null if the request failed
+     */
+    public synchronized void record(long start, long latency, ChatResponse response) {
+        if (firstRequest == 0 || start < firstRequest) {
+            firstRequest = start;
+        }
+        lastResponse = Math.max(lastResponse, start + latency);
+        if (response == null) {
+            failures++;
+            return;
+        }
+        addSample(latency);
+        requests++;
+        totalLatency += latency;
+        if (response.usage != null) {
+            completionTokens += response.usage.completionTokens;
+        }
+    }
+
+    /**
+     * Record a call cancelled since the other call of a hedged pair answered first.
+     * Its latency is at least the time it ran, which is kept as a sample so that the percentiles
+     * are not drawn only from the calls fast enough to answer.
+     */
+    public synchronized void recordCancelled(long latency) {
+        addSample(latency);
+    }
+
+    private void addSample(long latency) {
+        latencies[(int) (samples % LATENCY_SAMPLES)] = latency;
+        samples++;
+    }
+
+    /**
+     * @return the latency percentile of the calls, 0 if too few calls were observed
+     */
+    public synchronized long getLatencyPercentile(double percentile) {
+        return samples < MIN_HEDGE_SAMPLES ? 0 : getPercentile(percentile);
+    }
+
+    public synchronized void recordHedge() {
+        hedges++;
+    }
+
+    /**
+     * Record a hedge which answered before the call it duplicated. The call it replaced is cancelled,
+     * so the latency saved is estimated against the p99 latency of the backend.
+     * @param elapsed the milliseconds since the call the hedge duplicated was sent
+     */
+    public synchronized void recordHedgeWin(long elapsed) {
+        hedgeWins++;
+        savedMillis += Math.max(getPercentile(0.99) - elapsed, 0);
+    }
+
+    private long getPercentile(double percentile) {
+        int size = (int) Math.min(samples, LATENCY_SAMPLES);
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, size);
+        Arrays.sort(sorted);
+        return sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+    }
+
+    public synchronized String getStats() {
+        double seconds = Math.max(lastResponse - firstRequest, 1) / 1000.0;
+        String stats = String.format("Backend %s (%s): responses: %d, failures: %d, latency avg: %dms, p50: %dms, p95: %dms, "
+                        + "throughput: %.2f responses/s, %.1f completion tokens/s",
+                getName(), getBaseUrl(), requests, failures, requests == 0 ? 0 : totalLatency / requests,
+                getPercentile(0.5), getPercentile(0.95), requests / seconds, completionTokens / seconds);
+        if (hedges > 0) {
+            stats += String.format(", hedged: %d (%.1f%%), won by the hedge: %d, latency saved: ~%ds",
+                    hedges, 100.0 * hedges / Math.max(requests + failures, 1), hedgeWins, savedMillis / 1000);
+        }
+        return stats;
+    }
+
+    /**
+     * All backends used in the run.
+     */
+    public static synchronized List<LlmBackend> getBackends() {
+        return new ArrayList<>(backends.values());
+    }
+
+    /**
+     * The OpenAI API, the payload has all the sampling parameters of the request.
+     */
+    public static class OpenAiBackend extends LlmBackend {
+        @Override
+        public String getName() {
+            return "openai";
+        }
+
+        @Override
+        protected String getDefaultBaseUrl() {
+            return "https://api.openai.com/v1";
+        }
+
+        @Override
+        protected Map<String, Object> getPayload(ChatRequest chatRequest, boolean stream) {
+            Map<String, Object> payload = chatRequest.getPayload();
+            if (stream) {
+                payload.put("stream", true);
+                // the last chunk carries the usage of the whole response
+                payload.put("stream_options", Collections.singletonMap("include_usage", true));
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * A local inference server speaking the OpenAI protocol (llama.cpp server, vLLM, ...).
+     * Only the fields common to these servers are sent, the server is reached without the proxy,
+     * and several choices are asked for in separate requests since not every server supports n.
+     */
+    public static class LocalBackend extends LlmBackend {
+        @Override
+        public String getName() {
+            return "local";
+        }
+
+        @Override
+        protected String getDefaultBaseUrl() {
+            return "http://localhost:8080/v1";
+        }
+
+        @Override
+        public boolean supportsMultipleChoices() {
+            return false;
+        }
+
+        @Override
+        protected void configure(OkHttpClient.Builder builder) {
+            builder.proxy(Proxy.NO_PROXY);
+        }
+
+        @Override
+        protected Map<String, Object> getPayload(ChatRequest chatRequest, boolean stream) {
+            Map<String, Object> payload = chatRequest.getPayload();
+            payload.remove("n");
+            if (stream) {
+                payload.put("stream", true);
+            }
+            return payload;
+        }
+    }
+}
@@ -16,6 +16,11 @@ public class MethodInfo {
     public boolean isPublic;
     public List<String> parameters;
     public Map<String, Set<String>> dependentMethods;
+    // the indexes of the fields of the class the method uses
+    public List<Integer> usedFields;
+    // the tokens of the brief and the source code, counted at parse time for the prompt packer
+    public int briefTokens;
+    public int sourceCodeTokens;
 
     public MethodInfo(String className, String methodName, String brief, String methodSignature, String sourceCode,
                       boolean isConstructor, boolean useField, boolean isGetSet, boolean isPublic,
@@ -32,4 +37,15 @@ public class MethodInfo {
         this.parameters = parameters;
         this.dependentMethods = dependentMethods;
     }
+
+    /**
+     * Count the tokens of the brief and the source code, a no-op if they are counted already.
+     */
+    public MethodInfo countTokens() {
+        if (sourceCodeTokens == 0) {
+            briefTokens = TokenCounter.countToken(brief) + 1;
+            sourceCodeTokens = TokenCounter.countToken(sourceCode) + 1;
+        }
+        return this;
+    }
 }
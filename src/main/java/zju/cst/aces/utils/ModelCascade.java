@@ -0,0 +1,102 @@
+package zju.cst.aces.utils;
+
+import zju.cst.aces.parser.ErrorParser;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the model of each round from {@link Config#cascadeModels}, ordered from the cheapest to the strongest.
+ * A method starts with the first model, or with the second one if it has at least
+ * {@link Config#escalateDependencies} dependent classes, and moves to the next model
+ * every {@link Config#escalateAfterRounds} rounds, or at once after a round failed by an error type
+ * of {@link Config#escalateOnErrors}.
+ * Without cascade models, every round uses {@link Config#model}.
+ */
+public class ModelCascade {
+    private static final Map<String, ModelStats> stats = new LinkedHashMap<>();
+
+    public static List<String> getModels() {
+        if (Config.cascadeModels == null || Config.cascadeModels.length == 0) {
+            return Arrays.asList(Config.model);
+        }
+        return Arrays.asList(Config.cascadeModels);
+    }
+
+    /**
+     * @param rounds the round of the request, from 1
+     * @param promptInfo the prompt of the round, with the error messages of the previous round in a repair round
+     */
+    public static String getModel(MethodInfo methodInfo, int rounds, PromptInfo promptInfo) {
+        List<String> models = getModels();
+        if (models.size() == 1) {
+            return models.get(0);
+        }
+        int level = 0;
+        if (Config.escalateDependencies > 0 && methodInfo.dependentMethods.size() >= Config.escalateDependencies) {
+            level++;
+        }
+        if (Config.escalateAfterRounds > 0) {
+            level += (rounds - 1) / Config.escalateAfterRounds;
+        }
+        if (rounds > 1 && isEscalatingError(promptInfo)) {
+            level++;
+        }
+        return models.get(Math.min(level, models.size() - 1));
+    }
+
+    private static boolean isEscalatingError(PromptInfo promptInfo) {
+        if (promptInfo == null || promptInfo.errorMsg == null || Config.escalateOnErrors == null) {
+            return false;
+        }
+        try {
+            TestMessage.ErrorType type = ErrorParser.loadMessage(promptInfo.errorMsg).getErrorType();
+            return type != null && Arrays.stream(Config.escalateOnErrors).anyMatch(e -> e.trim().equalsIgnoreCase(type.name()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record a request to the model, once for all the candidates of a request with several choices.
+     * @param latency the milliseconds from sending the request to its response
+     */
+    public static synchronized void recordRequest(String model, long latency) {
+        ModelStats modelStats = stats.computeIfAbsent(model, m -> new ModelStats());
+        modelStats.requests++;
+        modelStats.totalLatency += latency;
+    }
+
+    /**
+     * Record a round of a candidate test answered by the model.
+     * @param success whether the round generated the test
+     */
+    public static synchronized void recordRound(String model, boolean success) {
+        ModelStats modelStats = stats.computeIfAbsent(model, m -> new ModelStats());
+        modelStats.rounds++;
+        if (success) {
+            modelStats.successes++;
+        }
+    }
+
+    public static synchronized String getStats() {
+        StringBuilder sb = new StringBuilder("Models:");
+        for (Map.Entry<String, ModelStats> entry : stats.entrySet()) {
+            ModelStats modelStats = entry.getValue();
+            sb.append(String.format(" [%s: requests: %d, avg latency: %dms, rounds: %d, tests generated: %d (%.1f%%)]",
+                    entry.getKey(), modelStats.requests, modelStats.totalLatency / Math.max(modelStats.requests, 1),
+                    modelStats.rounds, modelStats.successes, 100.0 * modelStats.successes / Math.max(modelStats.rounds, 1)));
+        }
+        return sb.toString();
+    }
+
+    private static class ModelStats {
+        private long requests = 0;
+        private long rounds = 0;
+        private long successes = 0;
+        private long totalLatency = 0;
+    }
+}
@@ -31,6 +31,19 @@ public class PromptInfo {
         this.methodCode = methodCode;
     }
 
+    /**
+     * A copy for another candidate, which sets its own unit test and error messages.
+     */
+    public PromptInfo copy() {
+        PromptInfo copy = new PromptInfo(hasDep, className, methodName, methodSignature, methodCode);
+        copy.info = info;
+        copy.constructorDeps = new ArrayList<>(constructorDeps);
+        copy.methodDeps = new ArrayList<>(methodDeps);
+        copy.errorMsg = errorMsg == null ? null : new ArrayList<>(errorMsg);
+        copy.unitTest = unitTest;
+        return copy;
+    }
+
     public void addMethodDeps(Map<String, String> methodDep) {
         if (methodDep == null) {
             return;
@@ -0,0 +1,92 @@
+package zju.cst.aces.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Greedy packing of the context of a prompt into the token budget of {@link Config#maxPromptTokens}.
+ * The pieces are offered in the order of their priority with the tokens counted at parse time,
+ * a piece is taken if it fits into the tokens left, otherwise it is dropped and smaller pieces of lower priority may still fit.
+ */
+public class PromptPacker {
+    private static final AtomicLong prompts = new AtomicLong();
+    private static final AtomicLong trimmed = new AtomicLong();
+    private static final AtomicLong overBudget = new AtomicLong();
+    private static final AtomicLong droppedPieces = new AtomicLong();
+
+    private final int budget;
+    private int used = 0;
+    private int dropped = 0;
+
+    public PromptPacker() {
+        this(Config.maxPromptTokens);
+    }
+
+    /**
+     * @param budget the tokens of the prompt, no limit if not positive
+     */
+    public PromptPacker(int budget) {
+        this.budget = budget > 0 ? budget : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Take a piece the prompt can not do without, even over the budget.
+     */
+    public void require(int tokens) {
+        used += tokens;
+    }
+
+    /**
+     * @return whether the piece fits and is taken
+     */
+    public boolean offer(int tokens) {
+        if (tokens <= budget - used) {
+            used += tokens;
+            return true;
+        }
+        dropped++;
+        return false;
+    }
+
+    /**
+     * Offer the pieces in their order.
+     * @return the pieces taken, in their order
+     */
+    public List<String> offer(List<String> pieces, List<Integer> tokens) {
+        List<String> taken = new ArrayList<>();
+        for (int i = 0; i < pieces.size(); i++) {
+            if (offer(tokens.get(i))) {
+                taken.add(pieces.get(i));
+            }
+        }
+        return taken;
+    }
+
+    public int getUsed() {
+        return used;
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Record the packed prompt in the statistics.
+     */
+    public void finish() {
+        prompts.incrementAndGet();
+        if (dropped > 0) {
+            trimmed.incrementAndGet();
+            droppedPieces.addAndGet(dropped);
+        }
+        if (used > budget) {
+            overBudget.incrementAndGet();
+        }
+    }
+
+    public static String getStats() {
+        return String.format("Prompt packer: prompts: %d, trimmed to the budget: %d (pieces dropped: %d), "
+                + "over the budget with the focal method alone: %d", prompts.get(), trimmed.get(), droppedPieces.get(), overBudget.get());
+    }
+}
@@ -0,0 +1,241 @@
+package zju.cst.aces.utils;
+
+import okhttp3.Headers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Token-bucket rate limiter per API key, with one bucket for requests per minute
+ * and one for tokens per minute.
+ * The limits are taken from {@link Config#requestsPerMinute} and {@link Config#tokensPerMinute},
+ * or learned from the x-ratelimit-* headers of the responses when they are not configured.
+ * A caller reserves capacity before sending and is told how long to wait instead of being rejected.
+ */
+public class RateLimiter {
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+    private static final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private static final AtomicLong delayedRequests = new AtomicLong();
+    private static final AtomicLong delayedMillis = new AtomicLong();
+    private static final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * Reserve one request and the estimated tokens on the key.
+     * @return the milliseconds to wait before the request can be sent
+     */
+    public static long reserve(String apiKey, int tokens) {
+        long wait = getBucket(apiKey).reserve(tokens, System.currentTimeMillis());
+        if (wait > 0) {
+            delayedRequests.incrementAndGet();
+            delayedMillis.addAndGet(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Reserve one request and the estimated tokens on the key only if they can be sent now.
+     * @return whether the capacity is reserved, nothing is taken if not
+     */
+    public static boolean tryReserve(String apiKey, int tokens) {
+        return getBucket(apiKey).tryReserve(tokens, System.currentTimeMillis());
+    }
+
+    /**
+     * Synchronize the buckets of the key with the rate limit headers of a response.
+     */
+    public static void update(String apiKey, Headers headers) {
+        Bucket bucket = getBucket(apiKey);
+        long now = System.currentTimeMillis();
+        bucket.requests.update(parseLong(headers.get("x-ratelimit-limit-requests")),
+                parseLong(headers.get("x-ratelimit-remaining-requests")),
+                parseDuration(headers.get("x-ratelimit-reset-requests")), now);
+        bucket.tokens.update(parseLong(headers.get("x-ratelimit-limit-tokens")),
+                parseLong(headers.get("x-ratelimit-remaining-tokens")),
+                parseDuration(headers.get("x-ratelimit-reset-tokens")), now);
+    }
+
+    /**
+     * The key was rate limited (429), hold all its requests for the given time.
+     */
+    public static void penalize(String apiKey, long millis) {
+        rateLimited.incrementAndGet();
+        getBucket(apiKey).holdUntil(System.currentTimeMillis() + Math.max(millis, 1000));
+    }
+
+    /**
+     * The share of the quota of the key left now, 1 if the limits are unknown.
+     * Negative when the capacity is already promised to delayed requests or the key is held after a 429.
+     */
+    public static double getRemaining(String apiKey) {
+        return getBucket(apiKey).getRemaining(System.currentTimeMillis());
+    }
+
+    /**
+     * Estimate the prompt tokens of the messages.
+     */
+    public static int estimateTokens(Iterable<Message> messages) {
+        int tokens = 0;
+        for (Message message : messages) {
+            // every message is wrapped by a few tokens of role and separators
+            tokens += TokenCounter.countToken(message.getContent()) + 4;
+        }
+        return tokens;
+    }
+
+    /**
+     * Parse the durations like "1s", "6m0s" or "20ms" used in the x-ratelimit-reset-* headers,
+     * or the seconds of the Retry-After header.
+     * @return the duration in milliseconds, -1 if absent
+     */
+    public static long parseDuration(String value) {
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        if (value.matches("\\d+")) {
+            return Long.parseLong(value) * 1000;
+        }
+        Matcher matcher = DURATION.matcher(value);
+        double millis = 0;
+        boolean found = false;
+        while (matcher.find()) {
+            found = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h": millis += amount * 3600_000; break;
+                case "m": millis += amount * 60_000; break;
+                case "s": millis += amount * 1000; break;
+                default: millis += amount;
+            }
+        }
+        return found ? (long) Math.ceil(millis) : -1;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Bucket getBucket(String apiKey) {
+        return buckets.computeIfAbsent(apiKey, k -> new Bucket());
+    }
+
+    public static String getStats() {
+        return String.format("Rate limiter: delayed requests: %d, total delay: %ds, rate limited responses: %d",
+                delayedRequests.get(), delayedMillis.get() / 1000, rateLimited.get());
+    }
+
+    private static class Bucket {
+        private final TokenBucket requests = new TokenBucket(Config.requestsPerMinute);
+        private final TokenBucket tokens = new TokenBucket(Config.tokensPerMinute);
+        private long heldUntil = 0;
+
+        synchronized long reserve(int tokenCount, long now) {
+            long wait = Math.max(heldUntil - now, 0);
+            wait = Math.max(wait, requests.reserve(1, now));
+            wait = Math.max(wait, tokens.reserve(tokenCount, now));
+            return wait;
+        }
+
+        synchronized boolean tryReserve(int tokenCount, long now) {
+            if (heldUntil > now || !requests.canReserve(1, now) || !tokens.canReserve(tokenCount, now)) {
+                return false;
+            }
+            requests.reserve(1, now);
+            tokens.reserve(tokenCount, now);
+            return true;
+        }
+
+        synchronized void holdUntil(long time) {
+            heldUntil = Math.max(heldUntil, time);
+        }
+
+        synchronized double getRemaining(long now) {
+            if (heldUntil > now) {
+                return -1;
+            }
+            return Math.min(requests.getRemaining(now), tokens.getRemaining(now));
+        }
+    }
+
+    /**
+     * A bucket refilled continuously at capacity per minute. The level may go negative,
+     * which represents the capacity already promised to delayed requests.
+     */
+    private static class TokenBucket {
+        private final boolean configured;
+        private double capacity;
+        private double level;
+        private long lastRefill;
+
+        TokenBucket(int perMinute) {
+            configured = perMinute > 0;
+            capacity = perMinute;
+            level = perMinute;
+            lastRefill = System.currentTimeMillis();
+        }
+
+        private void refill(long now) {
+            if (capacity > 0) {
+                level = Math.min(capacity, level + (now - lastRefill) * capacity / 60_000);
+            }
+            lastRefill = now;
+        }
+
+        synchronized long reserve(int amount, long now) {
+            if (capacity <= 0) {
+                return 0;
+            }
+            refill(now);
+            // a single request larger than the capacity is only delayed until the bucket is full
+            level -= Math.min(amount, capacity);
+            if (level >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-level * 60_000 / capacity);
+        }
+
+        synchronized boolean canReserve(int amount, long now) {
+            if (capacity <= 0) {
+                return true;
+            }
+            refill(now);
+            return level >= Math.min(amount, capacity);
+        }
+
+        synchronized double getRemaining(long now) {
+            if (capacity <= 0) {
+                return 1;
+            }
+            refill(now);
+            return level / capacity;
+        }
+
+        synchronized void update(long limit, long remaining, long resetMillis, long now) {
+            if (!configured && limit > 0) {
+                if (capacity <= 0) {
+                    // the limit is learned now, the bucket starts from what the server reports
+                    level = remaining >= 0 ? remaining : limit;
+                    lastRefill = now;
+                }
+                capacity = limit;
+            }
+            if (capacity <= 0 || remaining < 0) {
+                return;
+            }
+            refill(now);
+            // the server is the source of truth when it has seen more usage than we have
+            if (remaining < level) {
+                level = remaining;
+                if (remaining == 0 && resetMillis > 0) {
+                    level = -resetMillis * capacity / 60_000;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package zju.cst.aces.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight of identical requests: while a request is in flight, identical requests
+ * (same payload, whatever the candidate number) share its HTTP call and its result.
+ * Enabled by {@link Config#coalesceRequests}, since sharing the result gives up the diversity
+ * of the candidates sampled with a nonzero temperature.
+ */
+public class RequestCoalescer {
+    private static final Map<String, CompletableFuture<ChatResponse>> inFlight = new ConcurrentHashMap<>();
+    private static final AtomicLong calls = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Send the request by the given call, unless an identical request is already in flight.
+     */
+    public static CompletableFuture<ChatResponse> execute(ChatRequest chatRequest, Supplier<CompletableFuture<ChatResponse>> call) {
+        if (!Config.coalesceRequests) {
+            return call.get();
+        }
+        String key = chatRequest.getKey(false);
+        CompletableFuture<ChatResponse> created = new CompletableFuture<>();
+        CompletableFuture<ChatResponse> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        calls.incrementAndGet();
+        call.get().whenComplete((response, e) -> {
+            inFlight.remove(key, created);
+            if (e != null) {
+                created.completeExceptionally(e);
+            } else {
+                created.complete(response);
+            }
+        });
+        return created;
+    }
+
+    public static String getStats() {
+        return String.format("Request coalescing: calls: %d, coalesced: %d", calls.get(), coalesced.get());
+    }
+}
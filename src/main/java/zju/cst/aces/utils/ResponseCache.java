@@ -0,0 +1,139 @@
+package zju.cst.aces.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache of the LLM responses under tmpOutput, shared by repeated runs.
+ * A response is stored in a file named by the hash of the request payload and the candidate number
+ * (see {@link ChatRequest#getKey(boolean)}),
+ * files are written to a temporary file and moved in place so that concurrent readers never see a partial entry.
+ * When the cache exceeds {@link Config#cacheSize} MB, the least recently used entries are evicted.
+ */
+public class ResponseCache {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final String SUFFIX = ".json";
+    private static volatile ResponseCache instance;
+
+    private final Path cacheDir;
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ResponseCache(Path cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(cacheDir);
+        } catch (IOException e) {
+            throw new RuntimeException("In ResponseCache: " + e);
+        }
+        File[] files = cacheDir.toFile().listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                totalBytes.addAndGet(file.length());
+            }
+        }
+    }
+
+    /**
+     * @return the cache of this run, null if the cache is disabled
+     */
+    public static ResponseCache getInstance() {
+        if (!Config.enableCache) {
+            return null;
+        }
+        if (instance == null) {
+            synchronized (ResponseCache.class) {
+                if (instance == null) {
+                    instance = new ResponseCache(Paths.get(Config.tmpOutput, "response-cache"),
+                            (long) Config.cacheSize * 1024 * 1024);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the cached response of the request, null if not cached
+     */
+    public ChatResponse get(ChatRequest request) {
+        Path entry = cacheDir.resolve(request.getKey(true) + SUFFIX);
+        try {
+            String content = Files.readString(entry, StandardCharsets.UTF_8);
+            // the modification time is the recency of the entry for LRU eviction
+            entry.toFile().setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return GSON.fromJson(content, ChatResponse.class);
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            // a corrupted or concurrently evicted entry is a miss
+            misses.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Store the response of the request. An answer aborted as a refusal or prose is not stored,
+     * so that a later run asks again instead of replaying it.
+     */
+    public void put(ChatRequest request, ChatResponse response) {
+        if (response == null || response.getContent() == null || response.isAborted()) {
+            return;
+        }
+        String key = request.getKey(true);
+        Path entry = cacheDir.resolve(key + SUFFIX);
+        try {
+            byte[] bytes = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+            Path tmp = Files.createTempFile(cacheDir, key, ".tmp");
+            Files.write(tmp, bytes);
+            long previous = Files.exists(entry) ? Files.size(entry) : 0;
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (totalBytes.addAndGet(bytes.length - previous) > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            System.out.println("In ResponseCache.put: " + e);
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is below 90% of its size.
+     */
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        File[] files = cacheDir.toFile().listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (totalBytes.get() <= maxBytes * 9 / 10) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes.addAndGet(-length);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public String getStats() {
+        return String.format("Response cache: hits: %d, misses: %d, evictions: %d, size: %dKB",
+                hits.get(), misses.get(), evictions.get(), totalBytes.get() / 1024);
+    }
+}
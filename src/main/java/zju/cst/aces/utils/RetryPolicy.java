@@ -0,0 +1,48 @@
+package zju.cst.aces.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter for the failed requests, the Retry-After of the server takes precedence.
+ */
+public class RetryPolicy {
+    private static final long MAX_DELAY = 60_000;
+    // the quota per minute is back within a minute, a request still rate limited after this wait is given up
+    private static final long MAX_RATE_LIMIT_WAIT = 10 * 60_000;
+
+    /**
+     * @param failures the failures of the request so far
+     * @return the milliseconds to wait before the next try
+     */
+    public static long getDelay(int failures, ChatException e) {
+        if (e != null && e.getRetryAfterMillis() >= 0) {
+            return e.getRetryAfterMillis();
+        }
+        long base = Math.max(Config.retryBaseDelay, 1);
+        long ceiling = Math.min(MAX_DELAY, base << Math.min(failures, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling);
+    }
+
+    /**
+     * Whether the request can be tried again after the given failures.
+     */
+    public static boolean canRetry(int failures) {
+        return failures < Config.maxRetries;
+    }
+
+    /**
+     * The sends of a request, including the ones waiting for an open circuit,
+     * are bounded so that a request never waits forever.
+     */
+    public static int getMaxAttempts() {
+        return Math.max(Config.maxRetries, 1) * 4;
+    }
+
+    /**
+     * The sends after a 429 are not counted as attempts, they are bounded by the time waited for the quota instead.
+     * @param rateLimitedSince the time of the first 429 of the request
+     */
+    public static boolean canWaitForQuota(long rateLimitedSince) {
+        return System.currentTimeMillis() - rateLimitedSince < MAX_RATE_LIMIT_WAIT;
+    }
+}
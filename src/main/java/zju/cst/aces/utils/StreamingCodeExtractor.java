@@ -0,0 +1,123 @@
+package zju.cst.aces.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accumulate a streamed response and decide when reading can stop:
+ * once the closing fence of a code block containing a test arrives,
+ * or when the response is clearly not a test class (a refusal or prose only).
+ * The accumulated content is then handed to {@link CodeExtractor} as usual.
+ */
+public class StreamingCodeExtractor {
+    private static final String FENCE = "```";
+    private static final String[] REFUSALS = {"i'm sorry", "i am sorry", "sorry", "as an ai", "i cannot", "i can't", "unfortunately"};
+    private static final String[] CODE_MARKERS = {"import ", "@Test", "class "};
+    // characters without any fence after which a refusal is given up
+    private static final int REFUSAL_LIMIT = 200;
+    // characters without any fence or code after which the response is treated as prose only
+    private static final int PROSE_LIMIT = 1500;
+
+    private static final AtomicInteger streams = new AtomicInteger();
+    private static final AtomicInteger completedEarly = new AtomicInteger();
+    private static final AtomicInteger aborted = new AtomicInteger();
+
+    private final StringBuilder content = new StringBuilder();
+    private int scanFrom = 0;
+    private int openFence = -1;
+    private boolean sawFence = false;
+    private boolean checkedRefusal = false;
+    private boolean hasCode = false;
+    private State state = State.CONTINUE;
+
+    public enum State {
+        CONTINUE,
+        COMPLETE,
+        ABORT
+    }
+
+    public StreamingCodeExtractor() {
+        streams.incrementAndGet();
+    }
+
+    /**
+     * Append the next delta of the stream.
+     * @return CONTINUE if more content is needed
+     */
+    public State append(String delta) {
+        if (state != State.CONTINUE) {
+            return state;
+        }
+        content.append(delta);
+        int idx;
+        while ((idx = content.indexOf(FENCE, Math.max(scanFrom, 0))) != -1) {
+            sawFence = true;
+            scanFrom = idx + FENCE.length();
+            if (openFence == -1) {
+                openFence = idx;
+                continue;
+            }
+            String block = content.substring(openFence + FENCE.length(), idx);
+            openFence = -1;
+            if (block.contains("@Test")) {
+                content.setLength(scanFrom);
+                completedEarly.incrementAndGet();
+                return state = State.COMPLETE;
+            }
+        }
+        // a fence may be split across two deltas
+        scanFrom = Math.max(scanFrom, content.length() - FENCE.length() + 1);
+
+        if (!sawFence && isNotTest()) {
+            aborted.incrementAndGet();
+            return state = State.ABORT;
+        }
+        return state;
+    }
+
+    private boolean isNotTest() {
+        if (!checkedRefusal && content.length() >= REFUSAL_LIMIT) {
+            checkedRefusal = true;
+            String head = content.toString().trim().toLowerCase();
+            for (String refusal : REFUSALS) {
+                if (head.startsWith(refusal)) {
+                    return true;
+                }
+            }
+        }
+        if (!hasCode && content.length() >= PROSE_LIMIT) {
+            String text = content.toString();
+            for (String marker : CODE_MARKERS) {
+                if (text.contains(marker)) {
+                    hasCode = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getContent() {
+        return content.toString();
+    }
+
+    /**
+     * Whether the text ends inside a code block, i.e. it has an odd number of fences.
+     */
+    public static boolean isInCodeBlock(String text) {
+        int fences = 0;
+        for (int i = text.indexOf(FENCE); i >= 0; i = text.indexOf(FENCE, i + FENCE.length())) {
+            fences++;
+        }
+        return fences % 2 == 1;
+    }
+
+    public static String getStats() {
+        return String.format("Streamed responses: %d, stopped at closing fence: %d, aborted: %d",
+                streams.get(), completedEarly.get(), aborted.get());
+    }
+}
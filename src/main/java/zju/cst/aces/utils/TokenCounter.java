@@ -3,7 +3,12 @@ package zju.cst.aces.utils;
 import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
 import com.knuddels.jtokkit.api.EncodingRegistry;
-import com.knuddels.jtokkit.api.ModelType;
+import com.knuddels.jtokkit.api.EncodingType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @Author volunze
@@ -13,15 +18,78 @@ import com.knuddels.jtokkit.api.ModelType;
  * @Version 1.0
  */
 public class TokenCounter {
+    // strings shorter than this are counted directly, memoizing them costs more than counting
+    private static final int MIN_MEMO_LENGTH = 64;
+    private static final int MAX_MEMO_ENTRIES = 1024;
+    private static final EncodingRegistry registry = Encodings.newDefaultEncodingRegistry();
+    private static final Map<String, Encoding> encodings = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    // the counts of the long strings (class info, dependency briefs, ...) by model and text, least recently used first
+    private static final Map<String, Integer> memo = new LinkedHashMap<String, Integer>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_MEMO_ENTRIES;
+        }
+    };
 
     public TokenCounter() {
     }
 
-    public static int countToken(String error_message){
-        EncodingRegistry registry = Encodings.newDefaultEncodingRegistry();
-        // Get encoding for a specific model via string name
-        Encoding encoding = registry.getEncodingForModel(ModelType.GPT_3_5_TURBO);
-        int tokenCount = encoding.countTokens(error_message);
-        return tokenCount;
+    /**
+     * Count the tokens of the text for {@link Config#model}.
+     */
+    public static int countToken(String text) {
+        return countToken(text, Config.model);
+    }
+
+    public static int countToken(String text, String model) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Encoding encoding = getEncoding(model);
+        if (text.length() < MIN_MEMO_LENGTH) {
+            return encoding.countTokens(text);
+        }
+        String key = encoding.getName() + '\0' + text;
+        synchronized (memo) {
+            Integer count = memo.get(key);
+            if (count != null) {
+                hits.incrementAndGet();
+                return count;
+            }
+        }
+        misses.incrementAndGet();
+        int count = encoding.countTokens(text);
+        synchronized (memo) {
+            memo.put(key, count);
+        }
+        return count;
+    }
+
+    /**
+     * Count the tokens of the concatenation of the parts from the (memoized) counts of each part,
+     * without encoding the concatenation. A token merging across two parts is counted twice,
+     * so the count may exceed the exact one by one token per boundary, never fall below it.
+     */
+    public static int countTokens(String... parts) {
+        int count = 0;
+        for (String part : parts) {
+            count += countToken(part);
+        }
+        return count;
+    }
+
+    /**
+     * @return the encoding of the model, cl100k_base for a model unknown to the tokenizer (e.g. a local model)
+     */
+    public static Encoding getEncoding(String model) {
+        String name = model == null ? "" : model;
+        return encodings.computeIfAbsent(name, m -> registry.getEncodingForModel(m)
+                .orElseGet(() -> registry.getEncoding(EncodingType.CL100K_BASE)));
+    }
+
+    public static String getStats() {
+        return String.format("Token counter: memoized counts: hits: %d, misses: %d", hits.get(), misses.get());
     }
 }
@@ -0,0 +1,51 @@
+package zju.cst.aces.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run-level accounting of the tokens reported by the API in the usage of each response.
+ * Responses served from the cache or shared by coalescing cost nothing and are not recorded.
+ */
+public class UsageStats {
+    private static final AtomicLong responses = new AtomicLong();
+    private static final AtomicLong withoutUsage = new AtomicLong();
+    private static final AtomicLong promptTokens = new AtomicLong();
+    private static final AtomicLong completionTokens = new AtomicLong();
+    private static final AtomicLong truncated = new AtomicLong();
+    private static final AtomicLong continuations = new AtomicLong();
+
+    public static void record(ChatResponse response) {
+        responses.incrementAndGet();
+        if (response.usage == null) {
+            // a stream cancelled before its last chunk has no usage
+            withoutUsage.incrementAndGet();
+        } else {
+            promptTokens.addAndGet(response.usage.promptTokens);
+            completionTokens.addAndGet(response.usage.completionTokens);
+        }
+        for (ChatResponse.Choice choice : response.choices) {
+            if ("length".equals(choice.finishReason)) {
+                truncated.incrementAndGet();
+            }
+        }
+    }
+
+    public static void recordContinuation() {
+        continuations.incrementAndGet();
+    }
+
+    public static long getPromptTokens() {
+        return promptTokens.get();
+    }
+
+    public static long getCompletionTokens() {
+        return completionTokens.get();
+    }
+
+    public static String getStats() {
+        return String.format("Token usage: responses: %d (without usage: %d), prompt tokens: %d, completion tokens: %d, "
+                        + "choices truncated by length: %d, continuations: %d",
+                responses.get(), withoutUsage.get(), promptTokens.get(), completionTokens.get(), truncated.get(),
+                continuations.get());
+    }
+}